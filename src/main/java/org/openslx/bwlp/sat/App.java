@@ -1,9 +1,11 @@
 package org.openslx.bwlp.sat;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.sql.SQLException;
+import java.time.Duration;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -15,8 +17,11 @@ import org.apache.logging.log4j.core.config.Configurator;
 import org.apache.logging.log4j.core.config.DefaultConfiguration;
 import org.apache.thrift.TException;
 import org.apache.thrift.transport.TTransportException;
+import org.openslx.bwlp.sat.database.Database;
+import org.openslx.bwlp.sat.database.UnitOfWork;
 import org.openslx.bwlp.sat.database.Updater;
 import org.openslx.bwlp.sat.database.mappers.DbConfiguration;
+import org.openslx.bwlp.sat.database.mappers.DbLectureUsage;
 import org.openslx.bwlp.sat.database.mappers.DbUser;
 import org.openslx.bwlp.sat.fileserv.FileServer;
 import org.openslx.bwlp.sat.maintenance.DeleteOldImages;
@@ -31,7 +36,9 @@ import org.openslx.bwlp.sat.thrift.cache.OrganizationList;
 import org.openslx.bwlp.sat.thrift.cache.VirtualizerList;
 import org.openslx.bwlp.sat.util.Configuration;
 import org.openslx.bwlp.sat.util.Identity;
+import org.openslx.bwlp.sat.web.PagedListService;
 import org.openslx.bwlp.sat.web.WebServer;
+import org.openslx.bwlp.thrift.iface.SatelliteServer;
 import org.openslx.bwlp.thrift.iface.TInvalidTokenException;
 import org.openslx.sat.thrift.version.Version;
 import org.openslx.thrifthelper.ThriftManager;
@@ -73,6 +80,9 @@ public class App {
 		AppUtil.logProperty(LOGGER, "rpc.version", Long.toString(Version.VERSION));
 		AppUtil.logProperty(LOGGER, "server.features", SupportedFeatures.getFeatureString());
 
+		// Open initial database connections
+		Database.init();
+
 		// Update database schema if applicable
 		try {
 			Updater.updateDatabase();
@@ -161,6 +171,7 @@ public class App {
 		MailFlusher.init();
 		DeleteOldLectures.init();
 		DeleteOldUsers.init();
+		DbLectureUsage.init();
 
 		// Start Thrift Server
 		Thread t;
@@ -171,14 +182,29 @@ public class App {
 		// SSL
 		t = new Thread(new BinaryListener(9091, true));
 		t.start();
-		// Start httpd
-		t = new Thread(new WebServer(9080));
-		t.setDaemon(true);
-		t.start();
+		// Start httpd; separate server so it can be bound to localhost only, but
+		// running on the same event loops as the one below
+		ServerBuilder wsb = Server.builder();
+		String bindAddress = Configuration.getWebServerBindAddressLocal();
+		if (bindAddress == null) {
+			wsb.http(9080);
+		} else {
+			wsb.http(new InetSocketAddress(bindAddress, 9080));
+		}
+		wsb.maxRequestLength(65535);
+		// Let clients wait in line during boot storms; some RPCs of the web interface take a while too
+		wsb.requestTimeout(Duration.ofMinutes(5));
+		WebServer webServer = new WebServer();
+		for (String prefix : WebServer.PREFIXES) {
+			wsb.serviceUnder(prefix, webServer);
+		}
+		wsb.build().start();
 		// Start armeria server
 		ServerBuilder sb = Server.builder();
 		sb.http(9070);
-		sb.service("/", THttpService.of(new ServerHandler(), ThriftSerializationFormats.JSON));
+		sb.service("/", THttpService.of(UnitOfWork.wrap(SatelliteServer.Iface.class, new ServerHandler()),
+				ThriftSerializationFormats.JSON));
+		sb.serviceUnder("/list/", new PagedListService());
 		Server server = sb.build();
 		server.start();
 
@@ -186,6 +212,7 @@ public class App {
 			@Override
 			public void run() {
 				QuickTimer.cancel();
+				DbLectureUsage.flush();
 				LOGGER.info("All services and workers shut down, exiting...");
 			}
 		});
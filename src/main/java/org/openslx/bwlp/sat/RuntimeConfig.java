@@ -1,96 +1,264 @@
 package org.openslx.bwlp.sat;
 
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.openslx.bwlp.sat.database.Paginator;
 import org.openslx.bwlp.sat.database.mappers.DbConfiguration;
 import org.openslx.bwlp.sat.util.Constants;
+import org.openslx.bwlp.sat.util.VersionedSnapshot;
+import org.openslx.bwlp.sat.util.VersionedSnapshot.Loader;
 import org.openslx.bwlp.thrift.iface.ImagePermissions;
 import org.openslx.bwlp.thrift.iface.LecturePermissions;
 import org.openslx.bwlp.thrift.iface.SatelliteConfig;
 import org.openslx.bwlp.thrift.iface.SscMode;
-import org.openslx.util.GenericDataCache;
+import org.openslx.util.QuickTimer;
+import org.openslx.util.QuickTimer.Task;
 
+/**
+ * Satellite configuration that can be changed at runtime. The configuration
+ * is held as an immutable {@link Snapshot}, so reading it is cheap. It is
+ * reloaded from the database every minute, or right away when it is written
+ * through {@link DbConfiguration#setSatelliteConfig(SatelliteConfig)}, and
+ * registered {@link Listener}s are notified if anything changed.
+ */
 public class RuntimeConfig {
 
-	private static GenericDataCache<SatelliteConfig> cache = new GenericDataCache<SatelliteConfig>(60000) {
+	private static final Logger LOGGER = LogManager.getLogger(RuntimeConfig.class);
 
-		@Override
-		protected SatelliteConfig update() {
-			SatelliteConfig satConfig = null, readConfig = null;
-			try {
-				readConfig = DbConfiguration.getSatelliteConfig();
-			} catch (SQLException e) {
-				// Fall through
-			}
-			if (readConfig != null) {
-				satConfig = readConfig.deepCopy();
-			}
-			if (satConfig == null) {
-				satConfig = new SatelliteConfig();
-				satConfig.maxLocationsPerLecture = -1;
-			}
-			if (satConfig.defaultImagePermissions == null) {
-				satConfig.setDefaultImagePermissions(new ImagePermissions(true, true, false, false));
-			}
-			if (satConfig.defaultLecturePermissions == null) {
-				satConfig.setDefaultLecturePermissions(new LecturePermissions(false, false));
-			}
-			if (satConfig.maxImageValidityDays == 0) {
-				satConfig.setMaxImageValidityDays(220);
-			} else if (satConfig.maxImageValidityDays < 7) {
-				satConfig.maxImageValidityDays = 7;
-			}
-			if (satConfig.maxLectureValidityDays == 0) {
-				satConfig.setMaxLectureValidityDays(220);
-			} else if (satConfig.maxLectureValidityDays < 7) {
-				satConfig.setMaxLectureValidityDays(7);
-			}
-			if (satConfig.maxTransfers == 0) {
-				satConfig.setMaxTransfers(Constants.MAX_UPLOADS_PER_USER);
-			}
-			if (!satConfig.isSetAllowLoginByDefault()) {
-				satConfig.setAllowLoginByDefault(true);
+	private static final long CHECK_INTERVAL = 60000;
+
+	/**
+	 * Gets notified when the configuration changes.
+	 */
+	public interface Listener {
+		void configChanged(Snapshot config);
+	}
+
+	/**
+	 * Sanitized, immutable copy of the {@link SatelliteConfig}.
+	 */
+	public static final class Snapshot {
+		private final SatelliteConfig config;
+		private final long maxImageValiditySeconds;
+		private final long maxLectureValiditySeconds;
+		private final int maxLocationsPerLecture;
+		private final boolean allowLoginByDefault;
+		private final boolean allowStudentDownload;
+		private final SscMode serverSideCopy;
+
+		private Snapshot(SatelliteConfig config) {
+			this.config = config;
+			this.maxImageValiditySeconds = config.getMaxImageValidityDays() * 86400l;
+			this.maxLectureValiditySeconds = config.getMaxLectureValidityDays() * 86400l;
+			this.maxLocationsPerLecture = config.getMaxLocationsPerLecture();
+			this.allowLoginByDefault = config.isAllowLoginByDefault();
+			this.allowStudentDownload = config.isAllowStudentDownload();
+			this.serverSideCopy = config.getServerSideCopy();
+		}
+
+		public long getMaxImageValiditySeconds() {
+			return maxImageValiditySeconds;
+		}
+
+		public long getMaxLectureValiditySeconds() {
+			return maxLectureValiditySeconds;
+		}
+
+		public int getMaxLocationsPerLecture() {
+			return maxLocationsPerLecture;
+		}
+
+		public boolean allowLoginByDefault() {
+			return allowLoginByDefault;
+		}
+
+		public boolean allowStudentDownload() {
+			return allowStudentDownload;
+		}
+
+		public SscMode getServerSideCopy() {
+			return serverSideCopy;
+		}
+
+		/**
+		 * @return a copy of the full configuration, as sent to clients
+		 */
+		public SatelliteConfig toThrift() {
+			return config.deepCopy();
+		}
+	}
+
+	private static final VersionedSnapshot<Snapshot> config = new VersionedSnapshot<>("runtime config",
+			CHECK_INTERVAL, new Loader<Snapshot>() {
+				@Override
+				public Snapshot load() throws SQLException {
+					return RuntimeConfig.load();
+				}
+			});
+
+	/**
+	 * Last snapshot the listeners were notified about
+	 */
+	private static volatile Snapshot notified = null;
+
+	private static final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Get the current configuration. Only the caller that notices it is due
+	 * for a check reloads it, everybody else gets the current snapshot right
+	 * away.
+	 */
+	public static Snapshot snapshot() {
+		Snapshot s;
+		try {
+			s = config.get();
+		} catch (SQLException e) {
+			// Can't happen, load() falls back to the defaults if nothing was loaded yet
+			s = new Snapshot(sanitize(null));
+		}
+		if (s != notified) {
+			notifyListeners(s);
+		}
+		return s;
+	}
+
+	/**
+	 * Reload the configuration soon, as it was changed in the database.
+	 */
+	public static void invalidate() {
+		config.invalidate();
+		QuickTimer.scheduleOnce(new Task() {
+			@Override
+			public void fire() {
+				snapshot();
 			}
-			satConfig.setPageSize(Paginator.PER_PAGE);
-			satConfig.setMaxConnectionsPerTransfer(Constants.MAX_CONNECTIONS_PER_TRANSFER);
-			if (satConfig.maxLocationsPerLecture == -1) {
-				satConfig.setMaxLocationsPerLecture(4);
+		});
+	}
+
+	public static void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	public static void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Read and sanitize the configuration. Returns the current snapshot if
+	 * nothing changed, so listeners are only notified about actual changes.
+	 */
+	private static Snapshot load() throws SQLException {
+		Snapshot old = config.getIfLoaded();
+		SatelliteConfig readConfig;
+		try {
+			readConfig = DbConfiguration.getSatelliteConfig();
+		} catch (SQLException e) {
+			if (old != null) {
+				// Keep what we have, don't overwrite the stored config with defaults
+				throw e;
 			}
-			if (satConfig.serverSideCopy == null) {
-				satConfig.serverSideCopy = SscMode.AUTO;
+			readConfig = null;
+		}
+		SatelliteConfig satConfig = sanitize(readConfig);
+		// Update if we sanitized or added anything
+		if (!satConfig.equals(readConfig)) {
+			try {
+				DbConfiguration.setSatelliteConfig(satConfig);
+			} catch (SQLException e) {
 			}
-			// Update if we sanitized or added anything
-			if (!satConfig.equals(readConfig)) {
-				try {
-					DbConfiguration.setSatelliteConfig(satConfig);
-				} catch (SQLException e) {
-				}
+		}
+		if (old != null && old.config.equals(satConfig))
+			return old;
+		return new Snapshot(satConfig);
+	}
+
+	private static synchronized void notifyListeners(Snapshot snapshot) {
+		Snapshot old = notified;
+		// Another thread might have seen a newer snapshot already
+		if (old == snapshot || snapshot != config.getIfLoaded())
+			return;
+		notified = snapshot;
+		if (old == null)
+			return;
+		for (Listener listener : listeners) {
+			try {
+				listener.configChanged(snapshot);
+			} catch (Exception e) {
+				LOGGER.warn("Config change listener " + listener + " failed", e);
 			}
-			return satConfig;
 		}
-	};
+	}
 
+	private static SatelliteConfig sanitize(SatelliteConfig readConfig) {
+		SatelliteConfig satConfig = null;
+		if (readConfig != null) {
+			satConfig = readConfig.deepCopy();
+		}
+		if (satConfig == null) {
+			satConfig = new SatelliteConfig();
+			satConfig.maxLocationsPerLecture = -1;
+		}
+		if (satConfig.defaultImagePermissions == null) {
+			satConfig.setDefaultImagePermissions(new ImagePermissions(true, true, false, false));
+		}
+		if (satConfig.defaultLecturePermissions == null) {
+			satConfig.setDefaultLecturePermissions(new LecturePermissions(false, false));
+		}
+		if (satConfig.maxImageValidityDays == 0) {
+			satConfig.setMaxImageValidityDays(220);
+		} else if (satConfig.maxImageValidityDays < 7) {
+			satConfig.maxImageValidityDays = 7;
+		}
+		if (satConfig.maxLectureValidityDays == 0) {
+			satConfig.setMaxLectureValidityDays(220);
+		} else if (satConfig.maxLectureValidityDays < 7) {
+			satConfig.setMaxLectureValidityDays(7);
+		}
+		if (satConfig.maxTransfers == 0) {
+			satConfig.setMaxTransfers(Constants.MAX_UPLOADS_PER_USER);
+		}
+		if (!satConfig.isSetAllowLoginByDefault()) {
+			satConfig.setAllowLoginByDefault(true);
+		}
+		satConfig.setPageSize(Paginator.PER_PAGE);
+		satConfig.setMaxConnectionsPerTransfer(Constants.MAX_CONNECTIONS_PER_TRANSFER);
+		if (satConfig.maxLocationsPerLecture == -1) {
+			satConfig.setMaxLocationsPerLecture(4);
+		}
+		if (satConfig.serverSideCopy == null) {
+			satConfig.serverSideCopy = SscMode.AUTO;
+		}
+		return satConfig;
+	}
+
+	/**
+	 * @return a copy of the full configuration; use {@link #snapshot()} to
+	 *         just read it
+	 */
 	public static SatelliteConfig get() {
-		return cache.get().deepCopy();
+		return snapshot().toThrift();
 	}
 
 	public static long getMaxImageValiditySeconds() {
-		return cache.get().getMaxImageValidityDays() * 86400l;
+		return snapshot().getMaxImageValiditySeconds();
 	}
 
 	public static long getMaxLectureValiditySeconds() {
-		return cache.get().getMaxLectureValidityDays() * 86400l;
+		return snapshot().getMaxLectureValiditySeconds();
 	}
 
 	public static int getMaxLocationsPerLecture() {
-		return cache.get().getMaxLocationsPerLecture();
+		return snapshot().getMaxLocationsPerLecture();
 	}
 
 	/**
 	 * How long a version that is not the latest version of an image will be
 	 * kept.
-	 * 
+	 *
 	 * @return maximum lifetime in seconds
 	 */
 	public static long getOldVersionExpireSeconds() {
@@ -98,11 +266,15 @@ public class RuntimeConfig {
 	}
 
 	public static boolean allowLoginByDefault() {
-		return cache.get().allowLoginByDefault;
+		return snapshot().allowLoginByDefault();
 	}
-	
+
 	public static boolean allowStudentDownload() {
-		return cache.get().allowStudentDownload;
+		return snapshot().allowStudentDownload();
 	}
-	
+
+	public static SscMode getServerSideCopy() {
+		return snapshot().getServerSideCopy();
+	}
+
 }
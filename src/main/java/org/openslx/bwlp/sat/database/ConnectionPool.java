@@ -0,0 +1,443 @@
+package org.openslx.bwlp.sat.database;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded pool of mysql connections. At most <code>maxSize</code> connections
+ * will be handed out at the same time; any further request will wait in a
+ * fair (FIFO) queue for up to <code>waitTimeoutMs</code> for a connection to
+ * be returned.
+ * A maintenance thread validates idle connections in the background, closes
+ * connections that have been idle for too long and keeps at least
+ * <code>minIdle</code> connections open.
+ */
+class ConnectionPool {
+
+	private static final Logger LOGGER = LogManager.getLogger(ConnectionPool.class);
+
+	/**
+	 * How often the maintenance thread runs.
+	 */
+	private static final long MAINTENANCE_INTERVAL_MS = 30 * 1000;
+
+	/**
+	 * Idle connections get pinged by the maintenance thread if they haven't
+	 * been used for this long.
+	 */
+	private static final long VALIDATE_IDLE_MS = 30 * 1000;
+
+	/**
+	 * If a connection has been idle for longer than this, validate it before
+	 * handing it out, in case the maintenance thread didn't get to it yet.
+	 */
+	private static final long VALIDATE_ON_BORROW_IDLE_MS = 2 * MAINTENANCE_INTERVAL_MS;
+
+	private static final int VALIDATE_TIMEOUT_S = 2;
+
+	private final String name;
+
+	private final String uri;
+
+	private final String username;
+
+	private final String password;
+
+	private final int maxSize;
+
+	private final int minIdle;
+
+	private final long waitTimeoutMs;
+
+	private final long idleTimeoutMs;
+
+	private final int statementCacheSize;
+
+	/**
+	 * One permit per connection that can be handed out. Fair, so waiting
+	 * threads are served in order of arrival.
+	 */
+	private final Semaphore permits;
+
+	/**
+	 * Idle connections in regular mode. Used as a stack, so the most recently
+	 * returned (and thus warmest) connection gets handed out first.
+	 */
+	private final Deque<MysqlConnection> idle = new ConcurrentLinkedDeque<>();
+
+	/**
+	 * Idle connections in read-only mode. Kept apart from the others, so
+	 * connections don't need to switch modes on every borrow when both kinds
+	 * are in use.
+	 */
+	private final Deque<MysqlConnection> idleReadOnly = new ConcurrentLinkedDeque<>();
+
+	/**
+	 * Set of connections currently handed out.
+	 */
+	private final Set<MysqlConnection> busyConnections = Collections.newSetFromMap(new ConcurrentHashMap<MysqlConnection, Boolean>());
+
+	/**
+	 * Number of physical connections currently open, idle or busy.
+	 */
+	private final AtomicInteger openConnections = new AtomicInteger();
+
+	// Metrics
+
+	private final AtomicLong acquireCount = new AtomicLong();
+
+	private final AtomicLong waitCount = new AtomicLong();
+
+	private final AtomicLong waitTimeNanos = new AtomicLong();
+
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	private final AtomicLong timeoutCount = new AtomicLong();
+
+	private final AtomicLong brokenCount = new AtomicLong();
+
+	private final AtomicInteger peakBusy = new AtomicInteger();
+
+	private final AtomicLong statementCacheHits = new AtomicLong();
+
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+
+	private Thread maintenanceThread = null;
+
+	ConnectionPool(String name, String uri, String username, String password, int maxSize, int minIdle,
+			long waitTimeoutMs, long idleTimeoutMs, int statementCacheSize) {
+		this.name = name;
+		this.uri = uri;
+		this.username = username;
+		this.password = password;
+		this.maxSize = Math.max(1, maxSize);
+		this.minIdle = Math.max(0, Math.min(minIdle, this.maxSize));
+		this.waitTimeoutMs = Math.max(0, waitTimeoutMs);
+		this.idleTimeoutMs = Math.max(MAINTENANCE_INTERVAL_MS, idleTimeoutMs);
+		this.statementCacheSize = Math.max(0, statementCacheSize);
+		this.permits = new Semaphore(this.maxSize, true);
+	}
+
+	/**
+	 * Get a connection from the pool, waiting up to the configured timeout if
+	 * all connections are busy.
+	 *
+	 * @return connection to database, or <code>null</code> if none became
+	 *         available in time, or connecting failed
+	 */
+	MysqlConnection getConnection() {
+		return getConnection(false);
+	}
+
+	/**
+	 * Like {@link #getConnection()}, but optionally switch the connection to
+	 * read-only mode, see {@link Database#getReadOnlyConnection()}.
+	 */
+	MysqlConnection getConnection(boolean readOnly) {
+		acquireCount.incrementAndGet();
+		if (!acquirePermit())
+			return null;
+		MysqlConnection con;
+		for (;;) {
+			con = pollIdle(readOnly);
+			if (con == null)
+				break;
+			if ((con.getUncheckedMs(System.currentTimeMillis()) > VALIDATE_ON_BORROW_IDLE_MS
+					&& !con.isValid(VALIDATE_TIMEOUT_S)) || !con.setReadOnlyMode(readOnly)) {
+				release(con);
+				brokenCount.incrementAndGet();
+				continue;
+			}
+			markBusy(con);
+			return con;
+		}
+		// No pooled connection
+		con = createConnection();
+		if (con == null || !con.setReadOnlyMode(readOnly)) {
+			if (con != null) {
+				release(con);
+			}
+			permits.release();
+			return null;
+		}
+		markBusy(con);
+		return con;
+	}
+
+	/**
+	 * Called by a {@link MysqlConnection} when its <code>close()</code>-method
+	 * is called, so the connection will be added to the pool of available
+	 * connections again.
+	 */
+	void returnConnection(MysqlConnection connection) {
+		if (!busyConnections.remove(connection))
+			throw new RuntimeException("Tried to return a mysql connection to the pool that was not taken!");
+		connection.markIdle();
+		(connection.isReadOnlyMode() ? idleReadOnly : idle).addFirst(connection);
+		permits.release();
+	}
+
+	/**
+	 * Get an idle connection, preferably one that is in the requested mode
+	 * already. Switching the mode of an idle connection is still cheaper than
+	 * opening a new one.
+	 */
+	private MysqlConnection pollIdle(boolean readOnly) {
+		MysqlConnection con = (readOnly ? idleReadOnly : idle).pollFirst();
+		if (con != null)
+			return con;
+		return (readOnly ? idle : idleReadOnly).pollFirst();
+	}
+
+	private int idleCount() {
+		return idle.size() + idleReadOnly.size();
+	}
+
+	/**
+	 * Open connections until at least <code>minIdle</code> connections are
+	 * idle in the pool.
+	 */
+	void prewarm() {
+		int created = 0;
+		while (idleCount() < minIdle && openConnections.get() < maxSize) {
+			if (!tryAcquireIfIdle())
+				break; // Pool is busy anyways
+			try {
+				MysqlConnection con = createConnection();
+				if (con == null)
+					break;
+				idle.addLast(con);
+				created++;
+			} finally {
+				permits.release();
+			}
+		}
+		if (created != 0) {
+			LOGGER.debug("Opened " + created + " connections for " + name + " database pool");
+		}
+	}
+
+	/**
+	 * Start the background maintenance thread, if not running yet.
+	 */
+	synchronized void startMaintenance() {
+		if (maintenanceThread != null)
+			return;
+		maintenanceThread = new Thread("DbPool-" + name) {
+			@Override
+			public void run() {
+				try {
+					while (!interrupted()) {
+						Thread.sleep(MAINTENANCE_INTERVAL_MS);
+						try {
+							maintain();
+						} catch (Exception e) {
+							LOGGER.warn("Maintenance of " + name + " database pool failed", e);
+						}
+					}
+				} catch (InterruptedException e) {
+					interrupt();
+				}
+			}
+		};
+		maintenanceThread.setDaemon(true);
+		maintenanceThread.start();
+	}
+
+	/**
+	 * Go through all idle connections once. Connections idle for longer than
+	 * the idle timeout are closed, as long as that doesn't take us below
+	 * <code>minIdle</code>. All others get pinged if they haven't been used or
+	 * pinged in a while, so we notice connections killed by the server. Finally,
+	 * open new connections to get back to <code>minIdle</code>.
+	 */
+	private void maintain() {
+		int[] closed = new int[2];
+		maintain(idle, closed);
+		maintain(idleReadOnly, closed);
+		if (closed[0] != 0 || closed[1] != 0) {
+			LOGGER.debug("Closed " + closed[0] + " idle and " + closed[1] + " broken connections of " + name
+					+ " database pool");
+		}
+		prewarm();
+	}
+
+	/**
+	 * Check the connections of the given idle queue.
+	 * 
+	 * @param closed number of evicted and broken connections are added here
+	 */
+	private void maintain(Deque<MysqlConnection> idle, int[] closed) {
+		// Work on a copy, oldest first, so each connection is checked once even though kept ones are re-added
+		List<MysqlConnection> check = new ArrayList<>(idle);
+		for (int i = check.size() - 1; i >= 0; --i) {
+			// Hold a permit while the connection is out of the idle queue, so it doesn't count as free capacity
+			if (!tryAcquireIfIdle())
+				break;
+			try {
+				MysqlConnection con = check.get(i);
+				if (!idle.remove(con))
+					continue; // Handed out meanwhile
+				long now = System.currentTimeMillis();
+				if (con.getIdleMs(now) > idleTimeoutMs && idleCount() >= minIdle) {
+					release(con);
+					closed[0]++;
+				} else if (con.getUncheckedMs(now) > VALIDATE_IDLE_MS && !con.isValid(VALIDATE_TIMEOUT_S)) {
+					release(con);
+					closed[1]++;
+					brokenCount.incrementAndGet();
+				} else {
+					idle.addLast(con);
+				}
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	void countStatement(boolean cacheHit) {
+		if (cacheHit) {
+			statementCacheHits.incrementAndGet();
+		} else {
+			statementCacheMisses.incrementAndGet();
+		}
+	}
+
+	Status getStatus() {
+		return new Status();
+	}
+
+	private boolean acquirePermit() {
+		long start = System.nanoTime();
+		try {
+			// Zero-timeout tryAcquire honors fairness, unlike tryAcquire()
+			if (permits.tryAcquire(0, TimeUnit.MILLISECONDS))
+				return true;
+			waitCount.incrementAndGet();
+			boolean ok = permits.tryAcquire(waitTimeoutMs, TimeUnit.MILLISECONDS);
+			long waited = System.nanoTime() - start;
+			waitTimeNanos.addAndGet(waited);
+			long max;
+			while (waited > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, waited)) {
+				// Retry
+			}
+			if (!ok) {
+				timeoutCount.incrementAndGet();
+				LOGGER.warn("Timed out after " + waitTimeoutMs + "ms waiting for a " + name
+						+ " database connection (" + busyConnections.size()
+						+ " busy). Possible connection leak!");
+			}
+			return ok;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Get a permit for housekeeping, but only if that doesn't take it away
+	 * from a thread that's already waiting for one.
+	 */
+	private boolean tryAcquireIfIdle() {
+		try {
+			return permits.tryAcquire(0, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void markBusy(MysqlConnection con) {
+		if (!busyConnections.add(con))
+			throw new RuntimeException("Tried to hand out a busy connection!");
+		int busy = busyConnections.size();
+		int peak;
+		while (busy > (peak = peakBusy.get()) && !peakBusy.compareAndSet(peak, busy)) {
+			// Retry
+		}
+	}
+
+	private MysqlConnection createConnection() {
+		try {
+			// Create fresh connection
+			Properties props = new Properties();
+			props.setProperty("user", username);
+			props.setProperty("password", password);
+			// Let the driver turn batched INSERTs into multi-row INSERTs
+			props.setProperty("rewriteBatchedStatements", "true");
+			// Track autocommit, isolation and read-only state locally instead of asking the server
+			props.setProperty("useLocalSessionState", "true");
+			Connection rawConnection = DriverManager.getConnection(uri, props);
+			// By convention in our program we don't want auto commit
+			rawConnection.setAutoCommit(false);
+			// Wrap into our proxy
+			MysqlConnection con = new MysqlConnection(this, rawConnection, statementCacheSize);
+			openConnections.incrementAndGet();
+			return con;
+		} catch (SQLException e) {
+			LOGGER.info("Failed to connect to " + name + " mysql server", e);
+		}
+		return null;
+	}
+
+	private void release(MysqlConnection con) {
+		openConnections.decrementAndGet();
+		con.release();
+	}
+
+	public class Status {
+		public final String name;
+		public final int maxSize;
+		public final int open;
+		public final int idle;
+		public final int busy;
+		public final int peakBusy;
+		public final int waiting;
+		public final long acquired;
+		public final long waited;
+		public final long timedOut;
+		public final long broken;
+		public final long avgWaitMs;
+		public final long maxWaitMs;
+		public final long statementCacheHits;
+		public final long statementCacheMisses;
+		public final int statementCacheHitPercent;
+
+		private Status() {
+			this.name = ConnectionPool.this.name;
+			this.maxSize = ConnectionPool.this.maxSize;
+			this.open = openConnections.get();
+			this.idle = idleCount();
+			this.busy = busyConnections.size();
+			this.peakBusy = ConnectionPool.this.peakBusy.get();
+			this.waiting = permits.getQueueLength();
+			this.acquired = acquireCount.get();
+			this.waited = waitCount.get();
+			this.timedOut = timeoutCount.get();
+			this.broken = brokenCount.get();
+			this.avgWaitMs = this.waited == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(waitTimeNanos.get() / this.waited);
+			this.maxWaitMs = TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+			this.statementCacheHits = ConnectionPool.this.statementCacheHits.get();
+			this.statementCacheMisses = ConnectionPool.this.statementCacheMisses.get();
+			long total = this.statementCacheHits + this.statementCacheMisses;
+			this.statementCacheHitPercent = total == 0 ? 0 : (int) (this.statementCacheHits * 100 / total);
+		}
+	}
+
+}
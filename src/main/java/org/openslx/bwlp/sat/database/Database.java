@@ -1,31 +1,40 @@
 package org.openslx.bwlp.sat.database;
 
-import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Collections;
-import java.util.Queue;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openslx.bwlp.sat.util.Configuration;
+import org.openslx.util.QuickTimer;
+import org.openslx.util.QuickTimer.Task;
 
 public class Database {
 
 	private static final Logger LOGGER = LogManager.getLogger(Database.class);
+
+	/**
+	 * Pool of connections to the database.
+	 */
+	private static volatile ConnectionPool primary = null;
+
+	/**
+	 * Pool of connections to the read replica, if configured.
+	 */
+	private static volatile ConnectionPool replica = null;
+
 	/**
-	 * Pool of available connections.
+	 * Whether the replica is currently considered up to date enough to send
+	 * queries to.
 	 */
-	private static final Queue<MysqlConnection> pool = new ConcurrentLinkedQueue<>();
+	private static volatile boolean replicaUsable = false;
 
 	/**
-	 * Set of connections currently handed out.
+	 * Last known replication lag of the replica in seconds, -1 if unknown.
 	 */
-	private static final Set<MysqlConnection> busyConnections = Collections.newSetFromMap(new ConcurrentHashMap<MysqlConnection, Boolean>());
+	private static volatile long replicaLagSeconds = -1;
+
+	private static final long REPLICA_CHECK_INTERVAL_MS = 10 * 1000;
 
 	static {
 		try {
@@ -37,61 +46,129 @@ public class Database {
 		}
 	}
 
+	/**
+	 * Set up the connection pool, open the configured minimum number of idle
+	 * connections and start the thread keeping them alive. Needs to be called
+	 * after the configuration has been loaded.
+	 */
+	public static void init() {
+		ConnectionPool pool = getPrimary();
+		pool.prewarm();
+		pool.startMaintenance();
+		if (Configuration.getDbReplicaUri() != null) {
+			replica = new ConnectionPool("replica", Configuration.getDbReplicaUri(),
+					Configuration.getDbReplicaUsername(), Configuration.getDbReplicaPassword(),
+					Configuration.getDbPoolMaxSize(), Configuration.getDbPoolMinIdle(),
+					Configuration.getDbPoolWaitTimeoutMs(), Configuration.getDbPoolIdleTimeoutMs(),
+					Configuration.getDbStatementCacheSize());
+			replica.prewarm();
+			checkReplica();
+			replica.startMaintenance();
+			QuickTimer.scheduleAtFixedRate(new Task() {
+				@Override
+				public void fire() {
+					checkReplica();
+				}
+			}, REPLICA_CHECK_INTERVAL_MS, REPLICA_CHECK_INTERVAL_MS);
+		}
+	}
+
+	private static ConnectionPool getPrimary() {
+		ConnectionPool pool = primary;
+		if (pool == null) {
+			synchronized (Database.class) {
+				pool = primary;
+				if (pool == null) {
+					pool = new ConnectionPool("primary", Configuration.getDbUri(), Configuration.getDbUsername(),
+							Configuration.getDbPassword(), Configuration.getDbPoolMaxSize(),
+							Configuration.getDbPoolMinIdle(), Configuration.getDbPoolWaitTimeoutMs(),
+							Configuration.getDbPoolIdleTimeoutMs(), Configuration.getDbStatementCacheSize());
+					primary = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
 	/**
 	 * Get a connection to the database. If there is a valid connection in the
 	 * pool, it will be returned. Otherwise, a new connection is created. If
-	 * there are more than 20 busy connections, <code>null</code> is returned.
+	 * the maximum number of connections is busy, this will wait for one to be
+	 * returned to the pool. If that doesn't happen within the configured
+	 * timeout, <code>null</code> is returned. Inside a {@link UnitOfWork}, the
+	 * connection bound to it is returned if it's not in use, and the unit of
+	 * work isn't {@link UnitOfWork#suspend() suspended}.
 	 * 
 	 * @return connection to database, or <code>null</code>
 	 */
 	public static MysqlConnection getConnection() {
-		MysqlConnection con;
-		for (;;) {
-			con = pool.poll();
-			if (con == null)
-				break;
-			if (!con.isValid()) {
-				con.release();
-				continue;
-			}
-			if (!busyConnections.add(con))
-				throw new RuntimeException("Tried to hand out a busy connection!");
-			return con;
-		}
-		// No pooled connection
-		if (busyConnections.size() > 20) {
-			LOGGER.warn("Too many open MySQL connections. Possible connection leak!");
-			return null;
+		ConnectionPool pool = getPrimary();
+		MysqlConnection connection = UnitOfWork.acquire(pool);
+		if (connection != null)
+			return connection;
+		return pool.getConnection();
+	}
+
+	/**
+	 * Get a connection for queries that don't modify anything. The connection
+	 * runs in autocommit mode with READ COMMITTED isolation, so no
+	 * transaction needs to be rolled back when it is returned to the pool.
+	 * If a read replica is configured and not lagging behind too much, the
+	 * connection goes to the replica, unless the current {@link UnitOfWork}
+	 * already committed changes. Otherwise, inside a unit of work, its
+	 * connection is returned if it's not in use, so reads stay consistent
+	 * with the rest of the unit.
+	 * 
+	 * @return read-only connection to database, or <code>null</code>
+	 */
+	public static MysqlConnection getReadOnlyConnection() {
+		MysqlConnection connection;
+		ConnectionPool pool = replica;
+		if (pool != null && replicaUsable && !UnitOfWork.hasWritten()) {
+			connection = pool.getConnection(true);
+			if (connection != null)
+				return connection;
+			// Fall back to primary
 		}
-		try {
-			// Create fresh connection
-			Connection rawConnection = DriverManager.getConnection(Configuration.getDbUri(),
-					Configuration.getDbUsername(), Configuration.getDbPassword());
-			// By convention in our program we don't want auto commit
-			rawConnection.setAutoCommit(false);
-			// Wrap into our proxy
-			con = new MysqlConnection(rawConnection);
-			// Keep track of busy mysql connection
-			if (!busyConnections.add(con))
-				throw new RuntimeException("Tried to hand out a busy connection!");
-			return con;
+		pool = getPrimary();
+		connection = UnitOfWork.acquire(pool);
+		if (connection != null)
+			return connection;
+		return pool.getConnection(true);
+	}
+
+	/**
+	 * Query the replication lag of the replica and decide whether to use it.
+	 */
+	private static void checkReplica() {
+		long lag = -1;
+		try (MysqlConnection connection = replica.getConnection(true)) {
+			if (connection != null) {
+				lag = connection.getReplicationLag();
+			}
 		} catch (SQLException e) {
-			LOGGER.info("Failed to connect to local mysql server", e);
+			LOGGER.debug("Cannot query replication status of replica", e);
 		}
-		return null;
+		boolean usable = lag >= 0 && lag <= Configuration.getDbReplicaMaxLagSeconds();
+		if (usable != replicaUsable) {
+			if (usable) {
+				LOGGER.info("Sending read-only queries to replica (lag " + lag + "s)");
+			} else {
+				LOGGER.warn("Replica unusable (lag " + (lag < 0 ? "unknown" : lag + "s")
+						+ "), sending all queries to primary");
+			}
+		}
+		replicaLagSeconds = lag;
+		replicaUsable = usable;
 	}
 
 	/**
-	 * Called by a {@link MysqlConnection} when its <code>close()</code>-method
-	 * is called, so the connection will be added to the pool of available
-	 * connections again.
-	 * 
-	 * @param connection
+	 * Get usage statistics of the connection pools.
 	 */
-	static void returnConnection(MysqlConnection connection) {
-		if (!busyConnections.remove(connection))
-			throw new RuntimeException("Tried to return a mysql connection to the pool that was not taken!");
-		pool.add(connection);
+	public static Status getStatus() {
+		ConnectionPool pool = replica;
+		return new Status(getPrimary().getStatus(), pool == null ? null : pool.getStatus(), replicaUsable,
+				replicaLagSeconds);
 	}
 
 	public static void printCharsetInformation() {
@@ -115,8 +192,40 @@ public class Database {
 	}
 
 	public static void printDebug() {
-		LOGGER.info("Available: " + pool.size());
-		LOGGER.info("Busy: " + busyConnections.size());
+		printDebug(getPrimary().getStatus());
+		ConnectionPool pool = replica;
+		if (pool != null) {
+			LOGGER.info("Replica " + (replicaUsable ? "in use" : "not in use") + ", lag " + replicaLagSeconds + "s");
+			printDebug(pool.getStatus());
+		}
+	}
+
+	private static void printDebug(ConnectionPool.Status status) {
+		LOGGER.info("Pool: " + status.name);
+		LOGGER.info("Open: " + status.open + "/" + status.maxSize);
+		LOGGER.info("Available: " + status.idle);
+		LOGGER.info("Busy: " + status.busy + " (peak " + status.peakBusy + ")");
+		LOGGER.info("Waiting: " + status.waiting + ", waited " + status.waited + "/" + status.acquired
+				+ " times (avg " + status.avgWaitMs + "ms, max " + status.maxWaitMs + "ms), timed out "
+				+ status.timedOut + " times");
+		LOGGER.info("Broken connections discarded: " + status.broken);
+		LOGGER.info("Statement cache: " + status.statementCacheHits + " hits, " + status.statementCacheMisses
+				+ " misses (" + status.statementCacheHitPercent + "%)");
+	}
+
+	public static class Status {
+		public final ConnectionPool.Status primary;
+		public final ConnectionPool.Status replica;
+		public final boolean replicaUsable;
+		public final long replicaLagSeconds;
+
+		private Status(ConnectionPool.Status primary, ConnectionPool.Status replica, boolean replicaUsable,
+				long replicaLagSeconds) {
+			this.primary = primary;
+			this.replica = replica;
+			this.replicaUsable = replicaUsable;
+			this.replicaLagSeconds = replicaLagSeconds;
+		}
 	}
 
 }// end class
@@ -1,9 +1,14 @@
 package org.openslx.bwlp.sat.database;
 
 import java.sql.Connection;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -12,64 +17,301 @@ public class MysqlConnection implements AutoCloseable {
 
 	private static final Logger LOGGER = LogManager.getLogger(MysqlConnection.class);
 
-	private static final int CONNECTION_TIMEOUT_MS = 5 * 60 * 1000;
-
-	private final long deadline = System.currentTimeMillis() + CONNECTION_TIMEOUT_MS;
+	private final ConnectionPool pool;
 
 	private final Connection rawConnection;
 
 	private boolean hasPendingQueries = false;
 
+	/**
+	 * Whether statements were executed since the last commit or rollback,
+	 * i.e. a transaction is open.
+	 */
+	private boolean inTransaction = false;
+
+	/**
+	 * Read-only mode: autocommit, READ COMMITTED, no writes.
+	 */
+	private boolean readOnly = false;
+
+	private final int defaultIsolation;
+
+	/**
+	 * When this connection was last returned to the pool.
+	 */
+	private long lastReturned = System.currentTimeMillis();
+
+	/**
+	 * When this connection was last known to work, because it was returned
+	 * to the pool or a ping succeeded.
+	 */
+	private long lastChecked = lastReturned;
+
 	private List<MysqlStatement> openStatements = new ArrayList<>();
 
-	MysqlConnection(Connection rawConnection) {
+	/**
+	 * The unit of work this connection is bound to, if any. While bound,
+	 * {@link #close()} doesn't return the connection to the pool.
+	 */
+	private UnitOfWork unitOfWork = null;
+
+	/**
+	 * Prepared statements not currently in use, keyed by their SQL. Kept
+	 * across uses of this connection, so frequently used queries don't need
+	 * to be prepared again every time.
+	 */
+	private final StatementCache statementCache;
+
+	MysqlConnection(ConnectionPool pool, Connection rawConnection, int statementCacheSize)
+			throws SQLException {
+		this.pool = pool;
 		this.rawConnection = rawConnection;
+		this.statementCache = new StatementCache(statementCacheSize);
+		this.defaultIsolation = rawConnection.getTransactionIsolation();
 	}
 
+	/**
+	 * Prepare a statement with named parameters. The SQL should be constant,
+	 * as it is parsed once and kept for the lifetime of the application. Use
+	 * {@link #prepareDynamicStatement(String)} for SQL built at runtime.
+	 */
 	public MysqlStatement prepareStatement(String sql) throws SQLException {
+		return prepareStatement(sql, false);
+	}
+
+	/**
+	 * Prepare a statement whose SQL is built at runtime, e.g. by embedding a
+	 * list of IDs. The parsed query is cached on a best-effort basis only, the
+	 * prepared statement is not cached at all.
+	 */
+	public MysqlStatement prepareDynamicStatement(String sql) throws SQLException {
+		return prepareStatement(sql, true);
+	}
+
+	private MysqlStatement prepareStatement(String sql, boolean dynamic) throws SQLException {
 		if (!sql.startsWith("SELECT") && !sql.startsWith("DESCRIBE") && !sql.startsWith("SHOW")) {
 			hasPendingQueries = true;
 		}
-		MysqlStatement statement = new MysqlStatement(rawConnection, sql);
+		MysqlStatement statement = new MysqlStatement(this, sql, dynamic);
 		openStatements.add(statement);
 		return statement;
 	}
 
 	public void commit() throws SQLException {
 		rawConnection.commit();
+		if (hasPendingQueries) {
+			UnitOfWork.markWritten();
+		}
 		hasPendingQueries = false;
+		inTransaction = false;
 	}
 
 	public void rollback() throws SQLException {
 		rawConnection.rollback();
 		hasPendingQueries = false;
+		inTransaction = false;
+	}
+
+	/**
+	 * Called by {@link MysqlStatement} before executing anything.
+	 */
+	void markExecuted() {
+		if (!readOnly) {
+			inTransaction = true;
+		}
+	}
+
+	/**
+	 * Switch between read-only and regular mode. Does nothing if the
+	 * connection already is in the requested mode.
+	 * 
+	 * @return false if the connection is broken
+	 */
+	boolean setReadOnlyMode(boolean readOnly) {
+		if (this.readOnly == readOnly)
+			return true;
+		try {
+			if (readOnly) {
+				rawConnection.setAutoCommit(true);
+				rawConnection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+				rawConnection.setReadOnly(true);
+			} else {
+				rawConnection.setReadOnly(false);
+				rawConnection.setTransactionIsolation(defaultIsolation);
+				rawConnection.setAutoCommit(false);
+			}
+		} catch (SQLException e) {
+			LOGGER.warn("Could not switch connection to " + (readOnly ? "read-only" : "read-write") + " mode", e);
+			return false;
+		}
+		this.readOnly = readOnly;
+		return true;
+	}
+
+	boolean isReadOnlyMode() {
+		return readOnly;
+	}
+
+	/**
+	 * Get a prepared statement for the given (already parsed) SQL, either from
+	 * the cache or by preparing a new one.
+	 */
+	PreparedStatement getCachedStatement(String sql) throws SQLException {
+		PreparedStatement stmt = statementCache.remove(sql);
+		if (stmt != null) {
+			pool.countStatement(true);
+			return stmt;
+		}
+		pool.countStatement(false);
+		return rawConnection.prepareStatement(sql);
+	}
+
+	/**
+	 * Prepare a statement that bypasses the cache. Used for SQL built at
+	 * runtime, which would only push frequently used statements out of the
+	 * cache.
+	 */
+	PreparedStatement prepareUncachedStatement(String sql) throws SQLException {
+		return rawConnection.prepareStatement(sql);
+	}
+
+	/**
+	 * Put a statement back into the cache once it's not in use anymore. If
+	 * there already is a cached statement for the same SQL, the given one is
+	 * closed instead.
+	 */
+	void returnCachedStatement(String sql, PreparedStatement stmt) {
+		try {
+			if (stmt.isClosed())
+				return;
+			if (statementCache.containsKey(sql)) {
+				stmt.close();
+				return;
+			}
+			stmt.clearParameters();
+			stmt.clearBatch();
+			statementCache.put(sql, stmt);
+		} catch (SQLException e) {
+			closeQuietly(stmt);
+		}
+	}
+
+	/**
+	 * Get the number of seconds the server is lagging behind its replication
+	 * source.
+	 * 
+	 * @return lag in seconds, or -1 if replication isn't running
+	 * @throws SQLException if the replication status cannot be queried
+	 */
+	long getReplicationLag() throws SQLException {
+		try (Statement stmt = rawConnection.createStatement()) {
+			ResultSet rs;
+			String column;
+			try {
+				rs = stmt.executeQuery("SHOW REPLICA STATUS");
+				column = "Seconds_Behind_Source";
+			} catch (SQLException e) {
+				// Older MySQL and MariaDB versions
+				rs = stmt.executeQuery("SHOW SLAVE STATUS");
+				column = "Seconds_Behind_Master";
+			}
+			if (!rs.next())
+				return -1;
+			long lag;
+			try {
+				lag = rs.getLong(column);
+			} catch (SQLException e) {
+				// MariaDB keeps the old column name
+				lag = rs.getLong("Seconds_Behind_Master");
+			}
+			return rs.wasNull() ? -1 : lag;
+		}
+	}
+
+	/**
+	 * Check whether the connection is still alive by pinging the server.
+	 */
+	boolean isValid(int timeoutSeconds) {
+		try {
+			if (!rawConnection.isValid(timeoutSeconds))
+				return false;
+		} catch (SQLException e) {
+			return false;
+		}
+		lastChecked = System.currentTimeMillis();
+		return true;
 	}
 
-	boolean isValid() {
-		return System.currentTimeMillis() < deadline;
+	/**
+	 * How long this connection has been sitting in the pool unused.
+	 */
+	long getIdleMs(long now) {
+		return now - lastReturned;
+	}
+
+	/**
+	 * How long ago this connection was last known to work.
+	 */
+	long getUncheckedMs(long now) {
+		return now - lastChecked;
+	}
+
+	void markIdle() {
+		lastReturned = System.currentTimeMillis();
+		lastChecked = lastReturned;
+	}
+
+	void bind(UnitOfWork unitOfWork) {
+		this.unitOfWork = unitOfWork;
 	}
 
 	@Override
 	public void close() {
+		if (unitOfWork != null) {
+			// Keep the transaction of the unit of work going, only undo what wasn't committed by this user
+			if (hasPendingQueries) {
+				LOGGER.warn("Mysql connection had uncommited queries on .close()", new RuntimeException());
+				rollbackQuietly();
+			}
+			closeStatements();
+			unitOfWork.released();
+			return;
+		}
 		if (hasPendingQueries) {
 			LOGGER.warn("Mysql connection had uncommited queries on .close()", new RuntimeException());
 			hasPendingQueries = false;
 		}
+		if (inTransaction) {
+			rollbackQuietly();
+		}
+		closeStatements();
+		pool.returnConnection(this);
+	}
+
+	private void rollbackQuietly() {
+		hasPendingQueries = false;
+		inTransaction = false;
 		try {
 			rawConnection.rollback();
 		} catch (SQLException e) {
 			LOGGER.warn("Rolling back uncommited queries failed!", e);
 		}
+	}
+
+	private void closeStatements() {
 		if (!openStatements.isEmpty()) {
 			for (MysqlStatement statement : openStatements) {
 				statement.close();
 			}
 			openStatements.clear();
 		}
-		Database.returnConnection(this);
 	}
 
 	void release() {
+		for (PreparedStatement stmt : statementCache.values()) {
+			closeQuietly(stmt);
+		}
+		statementCache.clear();
 		try {
 			rawConnection.close();
 		} catch (SQLException e) {
@@ -77,4 +319,31 @@ public class MysqlConnection implements AutoCloseable {
 		}
 	}
 
+	private static void closeQuietly(PreparedStatement stmt) {
+		try {
+			stmt.close();
+		} catch (SQLException e) {
+			// Nothing meaningful to do
+		}
+	}
+
+	private static class StatementCache extends LinkedHashMap<String, PreparedStatement> {
+		private static final long serialVersionUID = 1L;
+
+		private final int maxSize;
+
+		public StatementCache(int maxSize) {
+			super(16, (float) 0.75, true);
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+			if (size() <= maxSize)
+				return false;
+			closeQuietly(eldest.getValue());
+			return true;
+		}
+	}
+
 }
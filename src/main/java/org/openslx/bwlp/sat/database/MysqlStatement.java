@@ -1,7 +1,6 @@
 package org.openslx.bwlp.sat.database;
 
 import java.io.Closeable;
-import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -11,6 +10,12 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.mysql.cj.jdbc.result.ResultSetInternalMethods;
 
 /**
  * Class for creating {@link PreparedStatement}s with named parameters. Based on
@@ -20,27 +25,54 @@ import java.util.Map;
  */
 public class MysqlStatement implements Closeable {
 
-	private static final QueryCache cache = new QueryCache();
+	private static final Logger LOGGER = LogManager.getLogger(MysqlStatement.class);
+
+	/**
+	 * Upper bound for the registry of static queries. There are only a few
+	 * hundred distinct queries in the code base, so hitting this means that
+	 * dynamically built SQL is passed to
+	 * {@link MysqlConnection#prepareStatement(String)}.
+	 */
+	private static final int MAX_REGISTERED_QUERIES = 2000;
+
+	/**
+	 * Parsed static queries. These are never evicted, and lookups don't lock.
+	 */
+	private static final ConcurrentHashMap<String, PreparsedQuery> registry = new ConcurrentHashMap<>();
+
+	/**
+	 * Parsed dynamic queries, i.e. SQL that is built at runtime. LRU with a
+	 * small limit.
+	 */
+	private static final QueryCache dynamicCache = new QueryCache();
+
+	private static volatile boolean registryFullWarned = false;
 
 	private final PreparsedQuery query;
 
+	private final MysqlConnection connection;
+
 	private final PreparedStatement statement;
 
+	/**
+	 * Statement is built at runtime, don't put it into the connection's
+	 * statement cache
+	 */
+	private final boolean dynamic;
+
 	private final List<ResultSet> openResultSets = new ArrayList<>();
 
-	MysqlStatement(Connection con, String sql) throws SQLException {
-		PreparsedQuery query;
-		synchronized (cache) {
-			query = cache.get(sql);
-		}
+	private boolean closed = false;
+
+	MysqlStatement(MysqlConnection con, String sql, boolean dynamic) throws SQLException {
+		PreparsedQuery query = registry.get(sql);
 		if (query == null) {
-			query = parse(sql);
-			synchronized (cache) {
-				cache.put(sql, query);
-			}
+			query = dynamic ? getDynamic(sql) : register(sql);
 		}
 		this.query = query;
-		this.statement = con.prepareStatement(query.sql);
+		this.connection = con;
+		this.dynamic = dynamic;
+		this.statement = dynamic ? con.prepareUncachedStatement(query.sql) : con.getCachedStatement(query.sql);
 	}
 
 	/**
@@ -50,8 +82,8 @@ public class MysqlStatement implements Closeable {
 	 * @return parameter indexes
 	 * @throws IllegalArgumentException if the parameter does not exist
 	 */
-	private List<Integer> getIndexes(String name) {
-		List<Integer> indexes = query.indexMap.get(name);
+	private int[] getIndexes(String name) {
+		int[] indexes = query.indexMap.get(name);
 		if (indexes == null) {
 			throw new IllegalArgumentException("Parameter not found: " + name);
 		}
@@ -68,8 +100,7 @@ public class MysqlStatement implements Closeable {
 	 * @see PreparedStatement#setObject(int, java.lang.Object)
 	 */
 	public void setObject(String name, Object value) throws SQLException {
-		List<Integer> indexes = getIndexes(name);
-		for (Integer index : indexes) {
+		for (int index : getIndexes(name)) {
 			statement.setObject(index, value);
 		}
 	}
@@ -84,8 +115,7 @@ public class MysqlStatement implements Closeable {
 	 * @see PreparedStatement#setString(int, java.lang.String)
 	 */
 	public void setString(String name, String value) throws SQLException {
-		List<Integer> indexes = getIndexes(name);
-		for (Integer index : indexes) {
+		for (int index : getIndexes(name)) {
 			statement.setString(index, value);
 		}
 	}
@@ -100,8 +130,7 @@ public class MysqlStatement implements Closeable {
 	 * @see PreparedStatement#setInt(int, int)
 	 */
 	public void setInt(String name, int value) throws SQLException {
-		List<Integer> indexes = getIndexes(name);
-		for (Integer index : indexes) {
+		for (int index : getIndexes(name)) {
 			statement.setInt(index, value);
 		}
 	}
@@ -116,8 +145,7 @@ public class MysqlStatement implements Closeable {
 	 * @see PreparedStatement#setLong(int, long)
 	 */
 	public void setLong(String name, long value) throws SQLException {
-		List<Integer> indexes = getIndexes(name);
-		for (Integer index : indexes) {
+		for (int index : getIndexes(name)) {
 			statement.setLong(index, value);
 		}
 	}
@@ -132,8 +160,7 @@ public class MysqlStatement implements Closeable {
 	 * @see PreparedStatement#setBoolean(int, boolean)
 	 */
 	public void setBoolean(String name, boolean value) throws SQLException {
-		List<Integer> indexes = getIndexes(name);
-		for (Integer index : indexes) {
+		for (int index : getIndexes(name)) {
 			statement.setBoolean(index, value);
 		}
 	}
@@ -148,8 +175,7 @@ public class MysqlStatement implements Closeable {
 	 * @see PreparedStatement#setBoolean(int, boolean)
 	 */
 	public void setBinary(String name, byte[] value) throws SQLException {
-		List<Integer> indexes = getIndexes(name);
-		for (Integer index : indexes) {
+		for (int index : getIndexes(name)) {
 			statement.setBytes(index, value);
 		}
 	}
@@ -162,22 +188,99 @@ public class MysqlStatement implements Closeable {
 	 * @see PreparedStatement#execute()
 	 */
 	public boolean execute() throws SQLException {
-		return statement.execute();
+		connection.markExecuted();
+		long start = System.nanoTime();
+		boolean ok = false;
+		try {
+			boolean ret = statement.execute();
+			ok = true;
+			return ret;
+		} finally {
+			query.stats.record(start, 0, !ok, query.indexMap.keySet());
+		}
 	}
 
 	/**
-	 * Executes the statement, which must be a query.
+	 * Executes the statement, which must be a query. The driver buffers the
+	 * whole result, the number of rows in it goes to the query statistics.
 	 * 
 	 * @return the query results
 	 * @throws SQLException if an error occurred
 	 * @see PreparedStatement#executeQuery()
 	 */
 	public ResultSet executeQuery() throws SQLException {
-		ResultSet rs = statement.executeQuery();
+		connection.markExecuted();
+		long start = System.nanoTime();
+		ResultSet rs;
+		try {
+			rs = statement.executeQuery();
+		} catch (SQLException e) {
+			query.stats.record(start, 0, true, query.indexMap.keySet());
+			throw e;
+		}
+		query.stats.record(start, countRows(rs), false, query.indexMap.keySet());
 		openResultSets.add(rs);
 		return rs;
 	}
 
+	/**
+	 * Get the number of rows the driver buffered for the given result, without
+	 * moving its cursor.
+	 * 
+	 * @return number of rows, 0 if unknown
+	 */
+	private static long countRows(ResultSet rs) {
+		try {
+			if (rs.isWrapperFor(ResultSetInternalMethods.class)) {
+				int size = rs.unwrap(ResultSetInternalMethods.class).getRows().size();
+				if (size > 0)
+					return size;
+			}
+		} catch (SQLException e) {
+			// Not Connector/J's result set
+		}
+		return 0;
+	}
+
+	/**
+	 * Executes the statement, which must be a query, and passes the rows to
+	 * the given handler one by one. The driver reads the rows off the socket
+	 * as the handler asks for them instead of buffering the whole result
+	 * first. Until all rows are read, the connection cannot be used for
+	 * anything else, so the handler should only collect what it needs; run
+	 * other queries or slow operations afterwards. Note that the time spent
+	 * in the handler is included in the query statistics.
+	 * 
+	 * @param handler called for every row
+	 * @return number of rows processed
+	 * @throws SQLException if an error occurred
+	 */
+	public int executeStreaming(RowHandler handler) throws SQLException {
+		connection.markExecuted();
+		// Connector/J's way of saying "stream row by row"
+		statement.setFetchSize(Integer.MIN_VALUE);
+		long start = System.nanoTime();
+		int rows = 0;
+		boolean ok = false;
+		try (ResultSet rs = statement.executeQuery()) {
+			while (rs.next()) {
+				handler.handle(rs);
+				rows++;
+			}
+			ok = true;
+			return rows;
+		} finally {
+			query.stats.record(start, rows, !ok, query.indexMap.keySet());
+			try {
+				// The statement goes back to the cache
+				statement.setFetchSize(0);
+			} catch (SQLException e) {
+				// Connection is broken; don't hide the original exception
+				LOGGER.debug("Could not reset fetch size", e);
+			}
+		}
+	}
+
 	/**
 	 * Executes the statement, which must be an SQL INSERT, UPDATE or DELETE
 	 * statement; or an SQL statement that returns nothing, such as a DDL
@@ -188,16 +291,31 @@ public class MysqlStatement implements Closeable {
 	 * @see PreparedStatement#executeUpdate()
 	 */
 	public int executeUpdate() throws SQLException {
-		return statement.executeUpdate();
+		connection.markExecuted();
+		long start = System.nanoTime();
+		int rows = 0;
+		boolean ok = false;
+		try {
+			rows = statement.executeUpdate();
+			ok = true;
+			return rows;
+		} finally {
+			query.stats.record(start, rows, !ok, query.indexMap.keySet());
+		}
 	}
 
 	/**
-	 * Closes the statement.
+	 * Closes the statement. The underlying {@link PreparedStatement} is handed
+	 * back to the connection's statement cache for reuse, unless the SQL was
+	 * built at runtime.
 	 * 
 	 * @see Statement#close()
 	 */
 	@Override
 	public void close() {
+		if (closed)
+			return;
+		closed = true;
 		for (ResultSet rs : openResultSets) {
 			try {
 				rs.close();
@@ -205,10 +323,15 @@ public class MysqlStatement implements Closeable {
 				//
 			}
 		}
-		try {
-			statement.close();
-		} catch (SQLException e) {
-			// Nothing to do
+		openResultSets.clear();
+		if (dynamic) {
+			try {
+				statement.close();
+			} catch (SQLException e) {
+				//
+			}
+		} else {
+			connection.returnCachedStatement(query.sql, statement);
 		}
 	}
 
@@ -230,12 +353,55 @@ public class MysqlStatement implements Closeable {
 	 * @throws SQLException if something went wrong
 	 */
 	public int[] executeBatch() throws SQLException {
-		return statement.executeBatch();
+		connection.markExecuted();
+		long start = System.nanoTime();
+		long rows = 0;
+		boolean ok = false;
+		try {
+			int[] counts = statement.executeBatch();
+			for (int count : counts) {
+				if (count > 0) {
+					rows += count;
+				}
+			}
+			ok = true;
+			return counts;
+		} finally {
+			query.stats.record(start, rows, !ok, query.indexMap.keySet());
+		}
 	}
 
 	// static methods
 
-	private static PreparsedQuery parse(String query) {
+	private static PreparsedQuery register(String sql) {
+		if (registry.size() >= MAX_REGISTERED_QUERIES) {
+			if (!registryFullWarned) {
+				registryFullWarned = true;
+				LOGGER.warn("Query registry is full, dynamic SQL passed to prepareStatement()? Last query: "
+						+ sql);
+			}
+			return getDynamic(sql);
+		}
+		PreparsedQuery query = parse(sql, false);
+		PreparsedQuery existing = registry.putIfAbsent(sql, query);
+		return existing == null ? query : existing;
+	}
+
+	private static PreparsedQuery getDynamic(String sql) {
+		PreparsedQuery query;
+		synchronized (dynamicCache) {
+			query = dynamicCache.get(sql);
+		}
+		if (query == null) {
+			query = parse(sql, true);
+			synchronized (dynamicCache) {
+				dynamicCache.put(sql, query);
+			}
+		}
+		return query;
+	}
+
+	private static PreparsedQuery parse(String query, boolean dynamic) {
 		int length = query.length();
 		StringBuffer parsedQuery = new StringBuffer(length);
 		Map<String, List<Integer>> paramMap = new HashMap<>();
@@ -290,18 +456,40 @@ public class MysqlStatement implements Closeable {
 			parsedQuery.append(c);
 		}
 
-		return new PreparsedQuery(parsedQuery.toString(), paramMap);
+		Map<String, int[]> indexMap = new HashMap<>(paramMap.size() * 2);
+		for (Map.Entry<String, List<Integer>> entry : paramMap.entrySet()) {
+			List<Integer> list = entry.getValue();
+			int[] indexes = new int[list.size()];
+			for (int i = 0; i < indexes.length; i++) {
+				indexes[i] = list.get(i);
+			}
+			indexMap.put(entry.getKey(), indexes);
+		}
+		return new PreparsedQuery(parsedQuery.toString(), indexMap, QueryStats.forQuery(query, dynamic));
+	}
+
+	/**
+	 * Callback for {@link MysqlStatement#executeStreaming(RowHandler)}.
+	 */
+	public interface RowHandler {
+		/**
+		 * Handle the current row of the given result set. Must not move the
+		 * cursor.
+		 */
+		void handle(ResultSet rs) throws SQLException;
 	}
 
 	// private helper classes
 
 	private static class PreparsedQuery {
-		private final Map<String, List<Integer>> indexMap;
+		private final Map<String, int[]> indexMap;
 		private final String sql;
+		private final QueryStats.Template stats;
 
-		public PreparsedQuery(String sql, Map<String, List<Integer>> indexMap) {
+		public PreparsedQuery(String sql, Map<String, int[]> indexMap, QueryStats.Template stats) {
 			this.sql = sql;
 			this.indexMap = indexMap;
+			this.stats = stats;
 		}
 	}
 
@@ -314,7 +502,7 @@ public class MysqlStatement implements Closeable {
 
 		@Override
 		protected boolean removeEldestEntry(Map.Entry<String, PreparsedQuery> eldest) {
-			return size() > 40;
+			return size() > 64;
 		}
 	}
 
@@ -1,11 +1,120 @@
 package org.openslx.bwlp.sat.database;
 
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Keyset pagination. Instead of skipping <code>page * PER_PAGE</code> rows
+ * with <code>LIMIT offset, count</code>, a page is fetched by seeking to the
+ * sort key of the last row of the previous page, so fetching a deep page is
+ * as cheap as fetching the first one.
+ */
 public class Paginator {
 
 	public static final int PER_PAGE = 200;
 
-	public static String limitStatement(int page) {
-		return " LIMIT " + (page * PER_PAGE) + ", " + PER_PAGE;
+	/**
+	 * Rows per query when maintenance jobs walk through a whole table
+	 */
+	public static final int BATCH_SIZE = 500;
+
+	private static final String TOKEN_PREFIX = "k1:";
+
+	/**
+	 * Page index entries older than this are discarded, so boundaries don't
+	 * drift too far when rows get added or removed.
+	 */
+	private static final long INDEX_MAX_AGE_MS = 10 * 60 * 1000;
+
+	/**
+	 * Turn the sort key of the last row of a page into an opaque token the
+	 * client can pass to get the next page.
+	 */
+	public static String encodeToken(String lastKey) {
+		if (lastKey == null)
+			return null;
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(
+				(TOKEN_PREFIX + lastKey).getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Get the sort key encoded in the given token. An empty or
+	 * <code>null</code> token refers to the start of the list.
+	 *
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	public static String decodeToken(String token) {
+		if (token == null || token.isEmpty())
+			return "";
+		String decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+		if (!decoded.startsWith(TOKEN_PREFIX))
+			throw new IllegalArgumentException("Invalid continuation token");
+		return decoded.substring(TOKEN_PREFIX.length());
+	}
+
+	/**
+	 * One page of a list, plus the token for getting the next page, which is
+	 * <code>null</code> if this is the last page.
+	 */
+	public static class Page<T> {
+		public final List<T> items;
+		public final String next;
+
+		public Page(List<T> items, String lastKey) {
+			this.items = items;
+			this.next = items.size() < PER_PAGE ? null : encodeToken(lastKey);
+		}
+	}
+
+	/**
+	 * Maps page numbers of the old offset based API to sort keys, so page
+	 * <code>n</code> can be fetched by seeking to the key page
+	 * <code>n-1</code> ended with. Clients walk through the pages in order,
+	 * so usually the key is known from the previous request.
+	 */
+	public static class PageIndex {
+
+		private volatile ConcurrentSkipListMap<Integer, String> boundaries = new ConcurrentSkipListMap<>();
+
+		private volatile long created = System.currentTimeMillis();
+
+		/**
+		 * Get the sort key after which the given page starts, or
+		 * <code>null</code> if unknown.
+		 */
+		public String getStartKey(int page) {
+			if (page == 0)
+				return "";
+			return current().get(page);
+		}
+
+		/**
+		 * Get the closest page before the given one whose start key is known.
+		 */
+		public Map.Entry<Integer, String> getClosest(int page) {
+			Map.Entry<Integer, String> entry = current().floorEntry(page);
+			if (entry == null)
+				return new AbstractMap.SimpleImmutableEntry<>(0, "");
+			return entry;
+		}
+
+		public void setStartKey(int page, String key) {
+			if (page > 0 && key != null) {
+				current().put(page, key);
+			}
+		}
+
+		private ConcurrentSkipListMap<Integer, String> current() {
+			if (System.currentTimeMillis() - created > INDEX_MAX_AGE_MS) {
+				boundaries = new ConcurrentSkipListMap<>();
+				created = System.currentTimeMillis();
+			}
+			return boundaries;
+		}
 	}
 
 }
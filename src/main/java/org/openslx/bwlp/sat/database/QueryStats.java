@@ -0,0 +1,210 @@
+package org.openslx.bwlp.sat.database;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.util.Configuration;
+
+/**
+ * Execution statistics per SQL template, i.e. per query string as passed to
+ * {@link MysqlConnection#prepareStatement(String)}. Collects latency
+ * histograms, row counts and error counts, and logs queries exceeding the
+ * configured slow query threshold.
+ */
+public class QueryStats {
+
+	private static final Logger LOGGER = LogManager.getLogger(QueryStats.class);
+
+	/**
+	 * Upper bounds of the histogram buckets, in milliseconds. There is one
+	 * additional bucket for everything above the last bound.
+	 */
+	private static final long[] BUCKET_BOUNDS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+	/**
+	 * Upper bound for the number of tracked templates. Everything beyond is
+	 * accounted to {@link #overflow}.
+	 */
+	private static final int MAX_TEMPLATES = 1000;
+
+	/**
+	 * Runs of placeholders, as generated for IN lists in dynamic queries.
+	 */
+	private static final Pattern PLACEHOLDER_LIST = Pattern.compile("\\?(\\s*,\\s*\\?)+");
+
+	/**
+	 * IN lists of literals and placeholders, as embedded in dynamic queries.
+	 */
+	private static final Pattern IN_LIST = Pattern.compile("(?i)\\bIN\\s*\\(\\s*(?:\\?|-?\\d+|'(?:[^'\\\\]|\\\\.)*')"
+			+ "(?:\\s*,\\s*(?:\\?|-?\\d+|'(?:[^'\\\\]|\\\\.)*'))*\\s*\\)");
+
+	/**
+	 * Any other number or string literal.
+	 */
+	private static final Pattern LITERAL = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'|\\b\\d+\\b");
+
+	private static final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<>();
+
+	private static final Template overflow = new Template("(other)");
+
+	/**
+	 * Get the statistics entry for the given query. Dynamic queries that only
+	 * differ in their IN lists or embedded literals share one entry.
+	 */
+	static Template forQuery(String sql, boolean dynamic) {
+		if (dynamic) {
+			sql = IN_LIST.matcher(sql).replaceAll("IN (?, ...)");
+			sql = PLACEHOLDER_LIST.matcher(sql).replaceAll("?, ...");
+			sql = LITERAL.matcher(sql).replaceAll("?");
+		}
+		Template t = templates.get(sql);
+		if (t != null)
+			return t;
+		if (templates.size() >= MAX_TEMPLATES)
+			return overflow;
+		t = new Template(sql);
+		Template existing = templates.putIfAbsent(sql, t);
+		return existing == null ? t : existing;
+	}
+
+	/**
+	 * Get a snapshot of the statistics, most expensive queries (by total
+	 * time) first.
+	 */
+	public static Status getStatus() {
+		List<Entry> list = new ArrayList<>(templates.size() + 1);
+		Collection<Template> values = templates.values();
+		for (Template t : values) {
+			list.add(t.snapshot());
+		}
+		if (overflow.executions.sum() != 0) {
+			list.add(overflow.snapshot());
+		}
+		Collections.sort(list, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry o1, Entry o2) {
+				return Double.compare(o2.totalMs, o1.totalMs);
+			}
+		});
+		return new Status(BUCKET_BOUNDS_MS.clone(), list);
+	}
+
+	/**
+	 * Statistics of one SQL template.
+	 */
+	static class Template {
+		private final String sql;
+		private final LongAdder executions = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder rows = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+
+		private Template(String sql) {
+			this.sql = sql;
+		}
+
+		/**
+		 * Record one execution that started at the given {@link System#nanoTime()}.
+		 *
+		 * @param params names of the bound parameters, for the slow query log
+		 */
+		void record(long startNanos, long rowCount, boolean failed, Collection<String> params) {
+			long nanos = System.nanoTime() - startNanos;
+			executions.increment();
+			totalNanos.add(nanos);
+			if (rowCount > 0) {
+				rows.add(rowCount);
+			}
+			if (failed) {
+				errors.increment();
+			}
+			long max;
+			while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos)) {
+				// Retry
+			}
+			long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+			int bucket = 0;
+			while (bucket < BUCKET_BOUNDS_MS.length && ms >= BUCKET_BOUNDS_MS[bucket]) {
+				bucket++;
+			}
+			buckets.incrementAndGet(bucket);
+			long threshold = Configuration.getDbSlowQueryMs();
+			if (threshold > 0 && ms >= threshold) {
+				LOGGER.warn("Slow query (" + ms + "ms) in " + findCaller() + ", params " + params + ": " + sql);
+			}
+		}
+
+		private Entry snapshot() {
+			long[] histogram = new long[buckets.length()];
+			for (int i = 0; i < histogram.length; ++i) {
+				histogram[i] = buckets.get(i);
+			}
+			return new Entry(sql, executions.sum(), errors.sum(), rows.sum(), totalNanos.sum(),
+					maxNanos.get(), histogram);
+		}
+	}
+
+	/**
+	 * Find the first method on the stack outside of the database layer,
+	 * which is usually the mapper method that ran the query.
+	 */
+	private static String findCaller() {
+		for (StackTraceElement element : new Throwable().getStackTrace()) {
+			String cls = element.getClassName();
+			if (cls.startsWith(QueryStats.class.getName()) || cls.startsWith(MysqlStatement.class.getName()))
+				continue;
+			return cls.substring(cls.lastIndexOf('.') + 1) + "." + element.getMethodName() + "()";
+		}
+		return "(unknown)";
+	}
+
+	public static class Status {
+		/**
+		 * Upper bounds of the histogram buckets, in milliseconds.
+		 */
+		public final long[] bucketsMs;
+		public final List<Entry> queries;
+
+		private Status(long[] bucketsMs, List<Entry> queries) {
+			this.bucketsMs = bucketsMs;
+			this.queries = queries;
+		}
+	}
+
+	public static class Entry {
+		public final String sql;
+		public final long executions;
+		public final long errors;
+		public final long rows;
+		public final double totalMs;
+		public final double avgMs;
+		public final double maxMs;
+		public final long[] histogram;
+
+		private Entry(String sql, long executions, long errors, long rows, long totalNanos, long maxNanos,
+				long[] histogram) {
+			this.sql = sql;
+			this.executions = executions;
+			this.errors = errors;
+			this.rows = rows;
+			this.totalMs = totalNanos / 1e6;
+			this.avgMs = executions == 0 ? 0 : totalNanos / 1e6 / executions;
+			this.maxMs = maxNanos / 1e6;
+			this.histogram = histogram;
+		}
+	}
+
+}
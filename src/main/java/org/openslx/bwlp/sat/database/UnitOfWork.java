@@ -0,0 +1,197 @@
+package org.openslx.bwlp.sat.database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Binds one database connection to the current thread for the duration of a
+ * unit of work, usually an RPC call. While a unit of work is active,
+ * {@link Database#getConnection()} hands out this connection instead of
+ * checking out a new one from the pool every time, so the mappers reuse it
+ * transparently. The connection is taken from the pool on first use and
+ * returned when the unit of work ends.
+ *
+ * Mappers keep their usual semantics: Closing the connection rolls back
+ * anything that wasn't committed by that mapper, and a commit made by one
+ * mapper is visible to all following ones. Reads that are not interleaved
+ * with commits see a consistent snapshot. If a mapper requests a connection
+ * while the bound one is still in use (i.e. mappers are nested), it gets a
+ * separate connection from the pool as before. Caches load their data
+ * while the unit of work is {@link #suspend()}ed, so they don't store what an
+ * old snapshot shows.
+ */
+public class UnitOfWork implements AutoCloseable {
+
+	private static final Logger LOGGER = LogManager.getLogger(UnitOfWork.class);
+
+	private static final ThreadLocal<UnitOfWork> current = new ThreadLocal<>();
+
+	/**
+	 * Connection bound to this unit of work, <code>null</code> until the
+	 * first query.
+	 */
+	private MysqlConnection connection = null;
+
+	/**
+	 * Whether a mapper currently holds the bound connection.
+	 */
+	private boolean inUse = false;
+
+	/**
+	 * Number of nested {@link #begin()} calls; only the outermost one ends
+	 * the unit of work.
+	 */
+	private int depth = 1;
+
+	/**
+	 * Whether anything was committed during this unit of work.
+	 */
+	private boolean wrote = false;
+
+	/**
+	 * Number of nested {@link #suspend()} calls not closed yet.
+	 */
+	private int suspended = 0;
+
+	/**
+	 * Ends a {@link #suspend()}.
+	 */
+	public static class Suspension implements AutoCloseable {
+		private final UnitOfWork uow;
+
+		private Suspension(UnitOfWork uow) {
+			this.uow = uow;
+		}
+
+		@Override
+		public void close() {
+			if (uow != null) {
+				uow.suspended--;
+			}
+		}
+	}
+
+	private UnitOfWork() {
+	}
+
+	/**
+	 * Start a unit of work on the current thread. If there already is one,
+	 * it is joined. Must be closed by the caller, preferably using
+	 * try-with-resources.
+	 */
+	public static UnitOfWork begin() {
+		UnitOfWork uow = current.get();
+		if (uow != null) {
+			uow.depth++;
+			return uow;
+		}
+		uow = new UnitOfWork();
+		current.set(uow);
+		return uow;
+	}
+
+	/**
+	 * Get the connection bound to the current unit of work. Returns
+	 * <code>null</code> if there is no active unit of work, or its
+	 * connection is currently in use.
+	 */
+	static MysqlConnection acquire(ConnectionPool pool) {
+		UnitOfWork uow = current.get();
+		if (uow == null || uow.inUse || uow.suspended > 0)
+			return null;
+		if (uow.connection == null) {
+			MysqlConnection connection = pool.getConnection();
+			if (connection == null)
+				return null;
+			connection.bind(uow);
+			uow.connection = connection;
+		}
+		uow.inUse = true;
+		return uow.connection;
+	}
+
+	/**
+	 * Hand out fresh connections from the pool instead of the one bound to
+	 * the current unit of work, until the returned object is closed. Used by
+	 * cache loaders: The bound connection might still see the snapshot taken
+	 * at its first read, which can be older than what other threads committed
+	 * meanwhile.
+	 */
+	public static Suspension suspend() {
+		UnitOfWork uow = current.get();
+		if (uow != null) {
+			uow.suspended++;
+		}
+		return new Suspension(uow);
+	}
+
+	/**
+	 * Remember that the current unit of work, if any, committed changes, so
+	 * following reads don't go to a possibly lagging replica.
+	 */
+	static void markWritten() {
+		UnitOfWork uow = current.get();
+		if (uow != null) {
+			uow.wrote = true;
+		}
+	}
+
+	/**
+	 * Whether the current unit of work committed changes.
+	 */
+	static boolean hasWritten() {
+		UnitOfWork uow = current.get();
+		return uow != null && uow.wrote;
+	}
+
+	/**
+	 * Called by the bound connection when a mapper closes it.
+	 */
+	void released() {
+		inUse = false;
+	}
+
+	/**
+	 * End the unit of work. Rolls back anything not committed yet and returns
+	 * the connection to the pool.
+	 */
+	@Override
+	public void close() {
+		if (--depth > 0)
+			return;
+		current.remove();
+		if (connection == null)
+			return;
+		if (inUse) {
+			LOGGER.warn("Unit of work ended while its connection is still in use", new RuntimeException());
+		}
+		connection.bind(null);
+		connection.close();
+		connection = null;
+	}
+
+	/**
+	 * Wrap the given object so that every call to a method of the given
+	 * interface runs in its own unit of work.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> T wrap(Class<T> iface, final T target) {
+		return (T) Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						try (UnitOfWork uow = begin()) {
+							return method.invoke(target, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+}
@@ -5,6 +5,7 @@ import java.sql.SQLException;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.mappers.DbReferenceData;
 
 public class Updater {
 
@@ -22,6 +23,8 @@ public class Updater {
 		addPredefinedNetworkShares();
 		addPredefinedRunScripts();
 		addPredefinedNetworkRules();
+		addSessionTable();
+		DbReferenceData.invalidate();
 	}
 
 	private static void addLectureLocationMapTable() throws SQLException {
@@ -359,6 +362,26 @@ public class Updater {
 		}
 	}
 	
+	private static void addSessionTable() throws SQLException {
+		try (MysqlConnection connection = Database.getConnection()) {
+			if (tableExists(connection, "usersession"))
+				return;
+			MysqlStatement tableAddStmt = connection.prepareStatement("CREATE TABLE `usersession` ("
+					+ " `tokenhash` char(64) CHARACTER SET ascii COLLATE ascii_bin NOT NULL,"
+					+ " `userinfo` text NOT NULL,"
+					+ " `validuntil` bigint(20) NOT NULL,"
+					+ " PRIMARY KEY (`tokenhash`),"
+					+ " KEY validuntil (validuntil)"
+					+ " ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci");
+			tableAddStmt.executeUpdate();
+			connection.commit();
+			LOGGER.info("Updated database: Added usersession table");
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in Updater.addSessionTable()", e);
+			throw e;
+		}
+	}
+
 	/*
 	 * Helper methods
 	 */
@@ -0,0 +1,89 @@
+package org.openslx.bwlp.sat.database.mappers;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openslx.bwlp.sat.database.UnitOfWork;
+import org.openslx.bwlp.sat.util.Configuration;
+
+/**
+ * Runs database work for the armeria event loops on a small dedicated
+ * executor (see {@link Configuration#getDbAsyncThreads()}), so they never
+ * block on JDBC. The executor is sized independently of, and well below, the
+ * connection pool, so it cannot take all connections away from the Thrift
+ * handlers. Only pass work that is bound by the database, not calls that
+ * might wait on the master server. Every call runs in its own
+ * {@link UnitOfWork}.
+ */
+public class DbAsync {
+
+	/**
+	 * Maximum number of calls waiting for a free thread. If exceeded, new
+	 * calls fail with a {@link RejectedExecutionException}.
+	 */
+	private static final int MAX_QUEUED = 1000;
+
+	private static volatile ExecutorService executor = null;
+
+	/**
+	 * A blocking database call.
+	 */
+	public interface DbCall<T> {
+		T call() throws Exception;
+	}
+
+	/**
+	 * Run the given call on the database executor.
+	 */
+	public static <T> CompletableFuture<T> supply(final DbCall<T> call) {
+		try {
+			return CompletableFuture.supplyAsync(() -> {
+				try (UnitOfWork uow = UnitOfWork.begin()) {
+					return call.call();
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new CompletionException(e);
+				}
+			}, getExecutor());
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<T> future = new CompletableFuture<>();
+			future.completeExceptionally(e);
+			return future;
+		}
+	}
+
+	private static ExecutorService getExecutor() {
+		ExecutorService es = executor;
+		if (es == null) {
+			synchronized (DbAsync.class) {
+				es = executor;
+				if (es == null) {
+					int threads = Configuration.getDbAsyncThreads();
+					es = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES,
+							new LinkedBlockingQueue<Runnable>(MAX_QUEUED), new ThreadFactory() {
+								private final AtomicInteger id = new AtomicInteger();
+
+								@Override
+								public Thread newThread(Runnable r) {
+									Thread t = new Thread(r, "DbAsync-" + id.incrementAndGet());
+									t.setDaemon(true);
+									return t;
+								}
+							});
+					((ThreadPoolExecutor) es).allowCoreThreadTimeOut(true);
+					executor = es;
+				}
+			}
+		}
+		return es;
+	}
+
+}
@@ -13,10 +13,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.RuntimeConfig;
 import org.openslx.bwlp.sat.database.Database;
 import org.openslx.bwlp.sat.database.MysqlConnection;
 import org.openslx.bwlp.sat.database.MysqlStatement;
@@ -24,6 +29,8 @@ import org.openslx.bwlp.sat.mail.MailQueue.MailConfig;
 import org.openslx.bwlp.sat.mail.MailTemplate;
 import org.openslx.bwlp.sat.mail.MailTemplateConfiguration;
 import org.openslx.bwlp.sat.mail.MailTemplatePlain.Template;
+import org.openslx.bwlp.sat.util.VersionedSnapshot;
+import org.openslx.bwlp.sat.util.VersionedSnapshot.Loader;
 import org.openslx.bwlp.thrift.iface.SatelliteConfig;
 import org.openslx.util.Json;
 
@@ -39,6 +46,23 @@ public class DbConfiguration {
 
 	private static final String KEY_LIMITS = "runtimelimits";
 
+	/**
+	 * Templates might also be edited directly in the database, so don't keep
+	 * them forever.
+	 */
+	private static final long MAIL_TEMPLATE_MAX_AGE = TimeUnit.MINUTES.toMillis(5);
+
+	/**
+	 * Parsed mail templates, see {@link #getMailTemplate(Template)}
+	 */
+	private static final VersionedSnapshot<Map<Template, MailTemplate>> mailTemplates = new VersionedSnapshot<>(
+			"mail templates", MAIL_TEMPLATE_MAX_AGE, new Loader<Map<Template, MailTemplate>>() {
+				@Override
+				public Map<Template, MailTemplate> load() throws SQLException {
+					return loadMailTemplates();
+				}
+			});
+
 	static {
 		Json.registerThriftClass(SatelliteConfig.class);
 	}
@@ -126,6 +150,7 @@ public class DbConfiguration {
 	
 	public static void setSatelliteConfig(SatelliteConfig config) throws SQLException {
 		store(KEY_LIMITS, Json.serialize(config).getBytes(StandardCharsets.UTF_8));
+		RuntimeConfig.invalidate();
 	}
 	
 	private static MailTemplateConfiguration getExistingMailTemplates()
@@ -144,8 +169,9 @@ public class DbConfiguration {
 	}
 
 	/**
-	 * access the database to read the mail templates. If the template is not
-	 * found a hard-coded configuration is used and is merged with the database.
+	 * Get the mail template with the given name. Templates are parsed once and
+	 * cached, until they are changed via {@link #updateMailTemplates(boolean)}
+	 * or are older than a few minutes.
 	 * 
 	 * @param name name of the desired mail template
 	 * 
@@ -153,8 +179,42 @@ public class DbConfiguration {
 	 * could be found.
 	 */
 	public static MailTemplate getMailTemplate(Template name) {
+		MailTemplate template;
+		try {
+			template = mailTemplates.get().get(name);
+		} catch (SQLException e) {
+			template = MailTemplateConfiguration.defaultTemplateConfiguration.getByName(name);
+		}
+		if (template == null) {
+			LOGGER.debug("Template with name \"" + name + "\" could not be found");
+		}
+		return template;
+	}
+
+	/**
+	 * Drop all cached mail templates, so they're read from the database again.
+	 */
+	public static void invalidateMailTemplates() {
+		mailTemplates.invalidate();
+	}
+
+	/**
+	 * access the database to read the mail templates. If the config or some
+	 * templates are missing, the hard-coded configuration is merged with the
+	 * database.
+	 */
+	private static Map<Template, MailTemplate> loadMailTemplates() throws SQLException {
 		/* Try to get config from DB */
-		MailTemplateConfiguration templateConf = getExistingMailTemplates();
+		MailTemplateConfiguration templateConf = null;
+		byte[] raw = retrieve(KEY_TEMPLATES);
+		if (raw != null) {
+			try {
+				templateConf = Json.deserialize(new String(raw, StandardCharsets.UTF_8),
+						MailTemplateConfiguration.class);
+			} catch (Exception e) {
+				LOGGER.debug("Cannot parse mail templates from db", e);
+			}
+		}
 
 		/* Case 1: Nothing in DB */
 		if (templateConf == null) {
@@ -167,25 +227,32 @@ public class DbConfiguration {
 			}
 		}
 
-		/* Case 2: DB has config but not the template */
-		if (templateConf != null && templateConf.getByName(name) == null
-				&& MailTemplateConfiguration.defaultTemplateConfiguration.getByName(name) != null) {
-			/* merge default config with templateConf */
-			LOGGER.debug("DB template config does not contain a template for " + name);
-			MailTemplateConfiguration newConf = templateConf.merge(MailTemplateConfiguration.defaultTemplateConfiguration);
-			try {
-				store(KEY_TEMPLATES, Json.serialize(newConf).getBytes(StandardCharsets.UTF_8));
+		/* Case 2: DB has config but not all templates */
+		for (Template name : Template.values()) {
+			if (templateConf.getByName(name) == null
+					&& MailTemplateConfiguration.defaultTemplateConfiguration.getByName(name) != null) {
+				/* merge default config with templateConf */
+				LOGGER.debug("DB template config does not contain a template for " + name);
+				MailTemplateConfiguration newConf = templateConf
+						.merge(MailTemplateConfiguration.defaultTemplateConfiguration);
+				try {
+					store(KEY_TEMPLATES, Json.serialize(newConf).getBytes(StandardCharsets.UTF_8));
+				} catch (SQLException e) {
+				}
 				templateConf = newConf;
-			} catch (SQLException e) {
+				break;
 			}
 		}
+
 		/* Case 3: DB has config and has the template */
-		if (templateConf != null && templateConf.getByName(name) != null) {
-			return templateConf.getByName(name);
+		Map<Template, MailTemplate> map = new EnumMap<>(Template.class);
+		for (Template name : Template.values()) {
+			MailTemplate template = templateConf.getByName(name);
+			if (template != null) {
+				map.put(name, template);
+			}
 		}
-		/* CASE 4: Neither in DB nor in default */
-		LOGGER.debug("Template with name \"" + name + "\" could not be found");
-		return null;
+		return Collections.unmodifiableMap(map);
 	}
 	
 	public static void updateMailTemplates(boolean resetExisting)
@@ -204,6 +271,7 @@ public class DbConfiguration {
 			store(KEY_TEMPLATES, Json.serialize(conf).getBytes(StandardCharsets.UTF_8));
 		} catch (SQLException e) {
 		}
+		invalidateMailTemplates();
 	}
 
 }
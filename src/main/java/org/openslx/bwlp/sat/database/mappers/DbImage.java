@@ -8,12 +8,18 @@ import org.openslx.bwlp.sat.RuntimeConfig;
 import org.openslx.bwlp.sat.database.Database;
 import org.openslx.bwlp.sat.database.MysqlConnection;
 import org.openslx.bwlp.sat.database.MysqlStatement;
+import org.openslx.bwlp.sat.database.MysqlStatement.RowHandler;
 import org.openslx.bwlp.sat.database.Paginator;
+import org.openslx.bwlp.sat.database.Paginator.Page;
+import org.openslx.bwlp.sat.database.Paginator.PageIndex;
 import org.openslx.bwlp.sat.database.models.ImageVersionMeta;
 import org.openslx.bwlp.sat.database.models.LocalImageVersion;
 import org.openslx.bwlp.sat.mail.MailGenerator;
+import org.openslx.bwlp.sat.permissions.PermissionResolver;
 import org.openslx.bwlp.sat.permissions.User;
+import org.openslx.bwlp.sat.util.Configuration;
 import org.openslx.bwlp.sat.util.FileSystem;
+import org.openslx.bwlp.sat.web.LaunchBundleCache;
 import org.openslx.bwlp.thrift.iface.*;
 import org.openslx.filetransfer.util.ChunkList;
 import org.openslx.filetransfer.util.FileChunk;
@@ -27,11 +33,17 @@ import java.io.File;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.function.Consumer;
 
 public class DbImage {
 
 	private static final Logger LOGGER = LogManager.getLogger(DbImage.class);
 
+	/**
+	 * Maps page numbers to imagebaseids for {@link #getAllVisible(UserInfo, List, int)}.
+	 */
+	private static final PageIndex pageIndex = new PageIndex();
+
 	/**
 	 * Get list of all images visible to the given user, optionally filtered by
 	 * the given list of tags.
@@ -47,27 +59,20 @@ public class DbImage {
 	public static List<ImageSummaryRead> getAllVisible(UserInfo user, List<String> tagSearch, int page)
 			throws SQLException {
 		// TODO: Implement tag search functionality
-		try (MysqlConnection connection = Database.getConnection()) {
-			MysqlStatement stmt = connection.prepareStatement("SELECT"
-					+ " i.imagebaseid, i.latestversionid, i.displayname, i.description,"
-					+ " i.osid, i.virtid, i.createtime, i.updatetime, i.ownerid,"
-					+ " i.sharemode, i.istemplate, i.canlinkdefault, i.candownloaddefault,"
-					+ " i.caneditdefault, i.canadmindefault,"
-					+ " lat.expiretime, lat.filesize, lat.isrestricted, lat.isvalid,"
-					+ " lat.uploaderid, lat.isprocessed, lat.createtime AS uploadtime,"
-					+ " perm.canlink, perm.candownload, perm.canedit, perm.canadmin,"
-					+ " Sum(allv.filesize) AS filesizesum, Count(allv.imageversionid) AS versioncount"
-					+ " FROM imagebase i"
-					+ " LEFT JOIN imageversion lat ON (lat.imageversionid = i.latestversionid)"
-					+ " LEFT JOIN imageversion allv ON (allv.imagebaseid = i.imagebaseid)"
-					+ " LEFT JOIN imagepermission perm ON (i.imagebaseid = perm.imagebaseid AND perm.userid = :userid)"
-					+ " GROUP BY imagebaseid"
-					+ Paginator.limitStatement(page));
-			stmt.setString("userid", user.userId);
-			ResultSet rs = stmt.executeQuery();
-			List<ImageSummaryRead> list = new ArrayList<>(100);
-			while (rs.next()) {
-				list.add(resultSetToSummary(user, rs));
+		if (page < 0)
+			return new ArrayList<>(1);
+		try (MysqlConnection connection = Database.getReadOnlyConnection()) {
+			String after = pageIndex.getStartKey(page);
+			if (after == null) {
+				Map.Entry<Integer, String> closest = pageIndex.getClosest(page);
+				after = seek(connection, closest.getValue(), (page - closest.getKey()) * Paginator.PER_PAGE);
+				if (after == null)
+					return new ArrayList<>(1);
+				pageIndex.setStartKey(page, after);
+			}
+			List<ImageSummaryRead> list = getAllVisibleAfter(connection, user, after);
+			if (list.size() == Paginator.PER_PAGE) {
+				pageIndex.setStartKey(page + 1, list.get(list.size() - 1).imageBaseId);
 			}
 			return list;
 		} catch (SQLException e) {
@@ -76,6 +81,70 @@ public class DbImage {
 		}
 	}
 
+	/**
+	 * Get one page of images, ordered by imagebaseid.
+	 * 
+	 * @param user Instance of {@link UserInfo} representing the user in
+	 *            question
+	 * @param token continuation token of the previous page, or
+	 *            <code>null</code> for the first page
+	 * @return page of {@link ImageSummaryRead}, and the token for the next
+	 *         one
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	public static Page<ImageSummaryRead> getVisiblePage(UserInfo user, String token) throws SQLException {
+		String after = Paginator.decodeToken(token);
+		try (MysqlConnection connection = Database.getReadOnlyConnection()) {
+			List<ImageSummaryRead> list = getAllVisibleAfter(connection, user, after);
+			return new Page<>(list, list.isEmpty() ? null : list.get(list.size() - 1).imageBaseId);
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbImage.getVisiblePage()", e);
+			throw e;
+		}
+	}
+
+	private static List<ImageSummaryRead> getAllVisibleAfter(MysqlConnection connection, UserInfo user,
+			String after) throws SQLException {
+		MysqlStatement stmt = connection.prepareStatement("SELECT"
+				+ " i.imagebaseid, i.latestversionid, i.displayname, i.description,"
+				+ " i.osid, i.virtid, i.createtime, i.updatetime, i.ownerid,"
+				+ " i.sharemode, i.istemplate, i.canlinkdefault, i.candownloaddefault,"
+				+ " i.caneditdefault, i.canadmindefault,"
+				+ " lat.expiretime, lat.filesize, lat.isrestricted, lat.isvalid,"
+				+ " lat.uploaderid, lat.isprocessed, lat.createtime AS uploadtime,"
+				+ " perm.canlink, perm.candownload, perm.canedit, perm.canadmin,"
+				+ " Sum(allv.filesize) AS filesizesum, Count(allv.imageversionid) AS versioncount"
+				+ " FROM imagebase i"
+				+ " LEFT JOIN imageversion lat ON (lat.imageversionid = i.latestversionid)"
+				+ " LEFT JOIN imageversion allv ON (allv.imagebaseid = i.imagebaseid)"
+				+ " LEFT JOIN imagepermission perm ON (i.imagebaseid = perm.imagebaseid AND perm.userid = :userid)"
+				+ " WHERE i.imagebaseid > :after"
+				+ " GROUP BY i.imagebaseid ORDER BY i.imagebaseid ASC LIMIT " + Paginator.PER_PAGE);
+		stmt.setString("userid", user.userId);
+		stmt.setString("after", after);
+		ResultSet rs = stmt.executeQuery();
+		List<ImageSummaryRead> list = new ArrayList<>(100);
+		while (rs.next()) {
+			list.add(resultSetToSummary(user, rs));
+		}
+		return list;
+	}
+
+	/**
+	 * Get the imagebaseid <code>skip</code> rows after the given one, i.e. the
+	 * key after which the page starting that many rows later begins.
+	 */
+	private static String seek(MysqlConnection connection, String after, int skip) throws SQLException {
+		MysqlStatement stmt = connection.prepareStatement("SELECT imagebaseid FROM imagebase"
+				+ " WHERE imagebaseid > :after ORDER BY imagebaseid ASC LIMIT :skip, 1");
+		stmt.setString("after", after);
+		stmt.setInt("skip", skip - 1);
+		ResultSet rs = stmt.executeQuery();
+		if (!rs.next())
+			return null;
+		return rs.getString("imagebaseid");
+	}
+
 	public static ImageDetailsRead getImageDetails(UserInfo user, String imageBaseId)
 			throws TNotFoundException, SQLException {
 		try (MysqlConnection connection = Database.getConnection()) {
@@ -172,22 +241,58 @@ public class DbImage {
 		return list;
 	}
 
-	public static List<LocalImageVersion> getExpiringLocalImageVersions(int maxRemainingDays)
+	/**
+	 * Pass all local image versions expiring within the given number of days
+	 * to the handler, see {@link #scanLocalImageVersions(String, Object, Consumer)}.
+	 */
+	public static void forEachExpiringLocalImageVersion(int maxRemainingDays,
+			Consumer<List<LocalImageVersion>> handler) throws SQLException {
+		scanLocalImageVersions("expiretime < :value", Util.unixTime() + (maxRemainingDays * 86400), handler);
+	}
+
+	/**
+	 * Pass all local image versions in the given delete state to the handler,
+	 * see {@link #scanLocalImageVersions(String, Object, Consumer)}.
+	 */
+	public static void forEachLocalWithState(DeleteState state, Consumer<List<LocalImageVersion>> handler)
 			throws SQLException {
-		try (MysqlConnection connection = Database.getConnection()) {
-			MysqlStatement stmt = connection.prepareStatement(localImageBaseSql
-					+ " WHERE expiretime < :deadline");
-			stmt.setLong("deadline", Util.unixTime() + (maxRemainingDays * 86400));
-			ResultSet rs = stmt.executeQuery();
-			List<LocalImageVersion> list = new ArrayList<>();
-			while (rs.next()) {
-				list.add(toLocalImageVersion(rs));
+		scanLocalImageVersions("deletestate = :value", state.name(), handler);
+	}
+
+	/**
+	 * Walk through all image versions matching the given condition in batches
+	 * of {@link Paginator#BATCH_SIZE}, ordered by version id. Every batch is
+	 * fetched with a fresh connection, which is returned before the handler
+	 * runs, so the handler may change or delete the versions it gets.
+	 * 
+	 * @param condition SQL condition, referring to the value as
+	 *            <code>:value</code>
+	 */
+	private static void scanLocalImageVersions(String condition, Object value,
+			Consumer<List<LocalImageVersion>> handler) throws SQLException {
+		String after = "";
+		List<LocalImageVersion> batch;
+		do {
+			batch = new ArrayList<>();
+			try (MysqlConnection connection = Database.getConnection()) {
+				MysqlStatement stmt = connection.prepareStatement(localImageBaseSql + " WHERE " + condition
+						+ " AND v.imageversionid > :after ORDER BY v.imageversionid ASC LIMIT "
+						+ Paginator.BATCH_SIZE);
+				stmt.setObject("value", value);
+				stmt.setString("after", after);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					batch.add(toLocalImageVersion(rs));
+				}
+			} catch (SQLException e) {
+				LOGGER.error("Query failed in DbImage.scanLocalImageVersions()", e);
+				throw e;
 			}
-			return list;
-		} catch (SQLException e) {
-			LOGGER.error("Query failed in DbImage.getAllLocalImages()", e);
-			throw e;
-		}
+			if (batch.isEmpty())
+				break;
+			after = batch.get(batch.size() - 1).imageVersionId;
+			handler.accept(batch);
+		} while (batch.size() == Paginator.BATCH_SIZE);
 	}
 
 	/**
@@ -405,6 +510,11 @@ public class DbImage {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbImage.updateImageMetadata()", e);
 			throw e;
+		} finally {
+			PermissionResolver.invalidateImage(imageBaseId);
+			DbLectureIndex.invalidate();
+			// OS might have changed
+			LaunchBundleCache.invalidate();
 		}
 	}
 
@@ -430,6 +540,8 @@ public class DbImage {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbImage.setImageOwner()", e);
 			throw e;
+		} finally {
+			PermissionResolver.invalidateImage(imageBaseId);
 		}
 	}
 
@@ -562,6 +674,9 @@ public class DbImage {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbImage.markForDeletion()", e);
 			throw e;
+		} finally {
+			DbLectureIndex.invalidate();
+			LaunchBundleCache.invalidate();
 		}
 	}
 
@@ -622,6 +737,9 @@ public class DbImage {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbImage.createImageVersion()", e);
 			throw e;
+		} finally {
+			DbLectureIndex.invalidate();
+			LaunchBundleCache.invalidate();
 		}
 	}
 
@@ -637,11 +755,20 @@ public class DbImage {
 				+ " (imageversionid, startbyte, blocksize, blocksha1, ismissing) VALUES"
 				+ " (:imageversionid, :startbyte, :blocksize, :blocksha1, 0)");
 		stmt.setString("imageversionid", imageVersionId);
+		final int batchSize = Configuration.getDbBatchSize();
+		int pending = 0;
 		for (FileChunk chunk : chunks.getAll()) {
 			stmt.setLong("startbyte", chunk.range.startOffset);
 			stmt.setInt("blocksize", chunk.range.getLength());
 			stmt.setBinary("blocksha1", chunk.getSha1Sum());
-			stmt.executeUpdate();
+			stmt.addBatch();
+			if (++pending >= batchSize) {
+				stmt.executeBatch();
+				pending = 0;
+			}
+		}
+		if (pending != 0) {
+			stmt.executeBatch();
 		}
 	}
 
@@ -686,6 +813,9 @@ public class DbImage {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbImage.markInvalid()", e);
 			throw e;
+		} finally {
+			DbLectureIndex.invalidate();
+			LaunchBundleCache.invalidate();
 		}
 		if (async) {
 			updateLatestVersionAsync(affectedVersions);
@@ -710,6 +840,9 @@ public class DbImage {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbImage.deleteVersionPermanently(2)", e);
 			throw e;
+		} finally {
+			DbLectureIndex.invalidate();
+			LaunchBundleCache.invalidate();
 		}
 	}
 
@@ -725,6 +858,8 @@ public class DbImage {
 				} catch (SQLException e) {
 					LOGGER.error("Query failed in DbImage.updateLatestVersionAsync()", e);
 				}
+				DbLectureIndex.invalidate();
+				LaunchBundleCache.invalidate();
 			}
 		});
 	}
@@ -988,6 +1123,8 @@ public class DbImage {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbImage.setVersionDetails()", e);
 			throw e;
+		} finally {
+			LaunchBundleCache.invalidate();
 		}
 	}
 
@@ -1024,23 +1161,6 @@ public class DbImage {
 		}
 	}
 
-	public static List<LocalImageVersion> getLocalWithState(DeleteState state) throws SQLException {
-		try (MysqlConnection connection = Database.getConnection()) {
-			MysqlStatement stmt = connection.prepareStatement(localImageBaseSql
-					+ " WHERE deletestate = :deletestate");
-			stmt.setString("deletestate", state.name());
-			ResultSet rs = stmt.executeQuery();
-			List<LocalImageVersion> list = new ArrayList<>();
-			while (rs.next()) {
-				list.add(toLocalImageVersion(rs));
-			}
-			return list;
-		} catch (SQLException e) {
-			LOGGER.error("Query failed in DbImage.getLocalWithState()", e);
-			throw e;
-		}
-	}
-
 	public static void deleteBasePermanently(String imageBaseId) throws SQLException {
 		try (MysqlConnection connection = Database.getConnection()) {
 			MysqlStatement stmt = connection.prepareStatement("DELETE FROM imagebase"
@@ -1051,6 +1171,10 @@ public class DbImage {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbImage.deleteBasePermanently()", e);
 			throw e;
+		} finally {
+			PermissionResolver.invalidateImage(imageBaseId);
+			DbLectureIndex.invalidate();
+			LaunchBundleCache.invalidate();
 		}
 	}
 
@@ -1102,19 +1226,23 @@ public class DbImage {
 	}
 
 	/**
-	 * Get all known file names of images, regardless of whether they are working/valid.
+	 * Pass the file names of all images to the handler, one by one, regardless
+	 * of whether they are working/valid. The rows are streamed, so the handler
+	 * must not use the database.
+	 * 
+	 * @return number of image versions
 	 */
-	public static Set<String> getAllFilenames() throws SQLException {
+	public static int forEachFilename(final Consumer<String> handler) throws SQLException {
 		try (MysqlConnection connection = Database.getConnection()) {
 			MysqlStatement stmt = connection.prepareStatement("SELECT filepath FROM imageversion");
-			ResultSet rs = stmt.executeQuery();
-			Set<String> result = new HashSet<>();
-			while (rs.next()) {
-				result.add(rs.getString("filepath"));
-			}
-			return result;
+			return stmt.executeStreaming(new RowHandler() {
+				@Override
+				public void handle(ResultSet rs) throws SQLException {
+					handler.accept(rs.getString("filepath"));
+				}
+			});
 		} catch (SQLException e) {
-			LOGGER.error("Query failed in DbImage.getAllFilenames()", e);
+			LOGGER.error("Query failed in DbImage.forEachFilename()", e);
 			throw e;
 		}
 	}
@@ -1122,7 +1250,7 @@ public class DbImage {
 
 	public static List<ContainerImages> getContainerImageCluster () throws SQLException {
 
-		try (MysqlConnection connection = Database.getConnection()) {
+		try (MysqlConnection connection = Database.getReadOnlyConnection()) {
 			MysqlStatement stmt = connection.prepareStatement(
 					"SELECT ib.imagebaseid, iv.filepath, iv.filesize, iv.virtualizerconfig, u.firstname, u.lastname"
 					+ " FROM imagebase AS ib"
@@ -1151,7 +1279,7 @@ public class DbImage {
 
 	public static String getContainerImageMetadata(String imagebaseid) throws SQLException {
 
-		try (MysqlConnection connection = Database.getConnection()) {
+		try (MysqlConnection connection = Database.getReadOnlyConnection()) {
 			MysqlStatement stmt = connection.prepareStatement(
 					"SELECT ib.imagebaseid, ib.displayname, iv.filepath, iv.filesize, iv.virtualizerconfig"
 							+ " FROM imagebase AS ib"
@@ -4,16 +4,19 @@ import java.nio.ByteBuffer;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
+import java.util.Map.Entry;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openslx.bwlp.sat.database.Database;
 import org.openslx.bwlp.sat.database.MysqlConnection;
 import org.openslx.bwlp.sat.database.MysqlStatement;
+import org.openslx.bwlp.sat.util.Configuration;
 import org.openslx.bwlp.sat.util.FileSystem;
-import org.openslx.filetransfer.FileRange;
 import org.openslx.filetransfer.LocalChunkSource.ChunkSource;
 import org.openslx.filetransfer.util.ChunkStatus;
 import org.openslx.filetransfer.util.FileChunk;
@@ -31,63 +34,246 @@ public class DbImageBlock {
 		}
 	}
 
-	public static void asyncUpdate(String imageVersionId, FileChunk chunk) throws InterruptedException {
+	/**
+	 * Queue an update of the missing-flag of the given chunk. This never
+	 * blocks; updates are collected and written to the database in bulk by a
+	 * background thread. If the same chunk gets updated again before that
+	 * happens, only the latest state will be written.
+	 */
+	public static void asyncUpdate(String imageVersionId, FileChunk chunk) {
 		initAsyncThread();
-		asyncBlockUpdate.put(new ChunkUpdate(imageVersionId, chunk.range,
-				chunk.getStatus() != ChunkStatus.COMPLETE));
+		asyncBlockUpdate.put(imageVersionId, chunk.range.startOffset, chunk.range.getLength(),
+				chunk.getStatus() != ChunkStatus.COMPLETE);
 	}
 
 	private static class AsyncThread extends Thread {
-		private final ArrayBlockingQueue<ChunkUpdate> queue = new ArrayBlockingQueue<>(100);
-		
+		/**
+		 * Flush immediately once this many updates are pending.
+		 */
+		private static final int FLUSH_THRESHOLD = 1000;
+
+		/**
+		 * Otherwise, wait this long for more updates to accumulate.
+		 */
+		private static final long FLUSH_DELAY_MS = 2000;
+
+		/**
+		 * Wait this long before trying again after a failed flush.
+		 */
+		private static final long RETRY_DELAY_MS = 10000;
+
+		/**
+		 * Maximum number of startbytes per UPDATE statement.
+		 */
+		private static final int MAX_IN_LIST = 1000;
+
+		/**
+		 * Pending updates, per image version. Guarded by itself.
+		 */
+		private final Map<String, PendingBlocks> pending = new HashMap<>();
+
+		private int pendingCount = 0;
+
 		public AsyncThread() {
 			super("DbBlockUpdater");
 		}
 
-		public void put(ChunkUpdate chunk) throws InterruptedException {
-			queue.put(chunk);
+		public void put(String imageVersionId, long startOffset, int blockSize, boolean isMissing) {
+			if (startOffset % FileChunk.CHUNK_SIZE != 0) {
+				LOGGER.warn("Ignoring block update for unaligned offset " + startOffset);
+				return;
+			}
+			int index = (int) (startOffset / FileChunk.CHUNK_SIZE);
+			synchronized (pending) {
+				PendingBlocks blocks = pending.get(imageVersionId);
+				if (blocks == null) {
+					blocks = new PendingBlocks();
+					pending.put(imageVersionId, blocks);
+				}
+				blocks.set(index, blockSize, isMissing);
+				if (++pendingCount == 1 || pendingCount >= FLUSH_THRESHOLD) {
+					pending.notify();
+				}
+			}
 		}
 
 		@Override
 		public void run() {
 			try {
 				while (!interrupted()) {
-					ChunkUpdate chunk = queue.take();
-					Thread.sleep(100);
-					try (MysqlConnection connection = Database.getConnection()) {
-						MysqlStatement stmt = connection.prepareStatement("UPDATE imageblock SET ismissing = :ismissing"
-								+ " WHERE imageversionid = :imageversionid AND startbyte = :startbyte AND blocksize = :blocksize");
-						do {
-							stmt.setBoolean("ismissing", chunk.isMissing);
-							stmt.setString("imageversionid", chunk.imageVersionId);
-							stmt.setLong("startbyte", chunk.range.startOffset);
-							stmt.setInt("blocksize", chunk.range.getLength());
-							stmt.executeUpdate();
-							chunk = queue.poll();
-						} while (chunk != null);
-						connection.commit();
-					} catch (SQLException e) {
-						LOGGER.error("Query failed in DbImageBlock.AsyncThread.run()", e);
-						continue;
+					Map<String, PendingBlocks> batch;
+					synchronized (pending) {
+						while (pending.isEmpty()) {
+							pending.wait();
+						}
+						if (pendingCount < FLUSH_THRESHOLD) {
+							pending.wait(FLUSH_DELAY_MS);
+						}
+						batch = new HashMap<>(pending);
+						pending.clear();
+						pendingCount = 0;
+					}
+					boolean ok;
+					try {
+						ok = flush(batch);
+					} catch (RuntimeException e) {
+						LOGGER.error("Unexpected error in DbImageBlock.AsyncThread.flush()", e);
+						ok = false;
+					}
+					if (!ok) {
+						requeue(batch);
+						Thread.sleep(RETRY_DELAY_MS);
 					}
-					Thread.sleep(2000);
 				}
 			} catch (InterruptedException e) {
 				LOGGER.debug("async thread interrupted");
 				interrupt();
 			}
 		}
+
+		/**
+		 * Put the updates of a failed flush back, unless newer updates for the
+		 * same blocks came in meanwhile.
+		 */
+		private void requeue(Map<String, PendingBlocks> batch) {
+			synchronized (pending) {
+				for (Entry<String, PendingBlocks> entry : batch.entrySet()) {
+					PendingBlocks newer = pending.get(entry.getKey());
+					if (newer == null) {
+						pending.put(entry.getKey(), entry.getValue());
+						pendingCount += entry.getValue().count();
+					} else {
+						pendingCount += newer.addOlder(entry.getValue());
+					}
+				}
+			}
+		}
+
+		/**
+		 * @return false if the updates could not be written
+		 */
+		private boolean flush(Map<String, PendingBlocks> batch) {
+			try (MysqlConnection connection = Database.getConnection()) {
+				if (connection == null) {
+					LOGGER.warn("No database connection for block status updates");
+					return false;
+				}
+				for (Entry<String, PendingBlocks> entry : batch.entrySet()) {
+					PendingBlocks blocks = entry.getValue();
+					update(connection, entry.getKey(), blocks.missing, blocks.sizes, true);
+					update(connection, entry.getKey(), blocks.complete, blocks.sizes, false);
+				}
+				connection.commit();
+				return true;
+			} catch (SQLException e) {
+				LOGGER.error("Query failed in DbImageBlock.AsyncThread.flush()", e);
+				return false;
+			}
+		}
+
+		private void update(MysqlConnection connection, String imageVersionId, BitSet indexes,
+				Map<Integer, Integer> sizes, boolean isMissing) throws SQLException {
+			// Blocks of regular size, many at once
+			int index = nextFullBlock(indexes, sizes, 0);
+			while (index != -1) {
+				StringBuilder sb = new StringBuilder("UPDATE imageblock SET ismissing = :ismissing"
+						+ " WHERE imageversionid = :imageversionid AND blocksize = :blocksize AND startbyte IN (");
+				for (int i = 0; i < MAX_IN_LIST && index != -1; ++i) {
+					if (i != 0) {
+						sb.append(',');
+					}
+					sb.append((long) index * FileChunk.CHUNK_SIZE);
+					index = nextFullBlock(indexes, sizes, index + 1);
+				}
+				sb.append(')');
+				MysqlStatement stmt = connection.prepareDynamicStatement(sb.toString());
+				stmt.setBoolean("ismissing", isMissing);
+				stmt.setString("imageversionid", imageVersionId);
+				stmt.setInt("blocksize", FileChunk.CHUNK_SIZE);
+				stmt.executeUpdate();
+				stmt.close();
+			}
+			// Shorter ones, usually just the last block of the file
+			if (sizes.isEmpty())
+				return;
+			MysqlStatement stmt = connection.prepareStatement("UPDATE imageblock SET ismissing = :ismissing"
+					+ " WHERE imageversionid = :imageversionid AND startbyte = :startbyte AND blocksize = :blocksize");
+			for (Entry<Integer, Integer> entry : sizes.entrySet()) {
+				if (!indexes.get(entry.getKey()))
+					continue;
+				stmt.setBoolean("ismissing", isMissing);
+				stmt.setString("imageversionid", imageVersionId);
+				stmt.setLong("startbyte", (long) entry.getKey() * FileChunk.CHUNK_SIZE);
+				stmt.setInt("blocksize", entry.getValue());
+				stmt.executeUpdate();
+			}
+			stmt.close();
+		}
+
+		private static int nextFullBlock(BitSet indexes, Map<Integer, Integer> sizes, int from) {
+			int index = indexes.nextSetBit(from);
+			while (index != -1 && sizes.containsKey(index)) {
+				index = indexes.nextSetBit(index + 1);
+			}
+			return index;
+		}
 	}
 
-	private static class ChunkUpdate {
-		public final String imageVersionId;
-		public final FileRange range;
-		public final boolean isMissing;
+	/**
+	 * Latest state of all blocks of an image version that have pending
+	 * updates, indexed by chunk number. All chunks are
+	 * {@link FileChunk#CHUNK_SIZE} bytes, except for the ones in
+	 * <code>sizes</code>.
+	 */
+	private static class PendingBlocks {
+		public final BitSet missing = new BitSet();
+		public final BitSet complete = new BitSet();
+		public final Map<Integer, Integer> sizes = new HashMap<>();
+
+		public void set(int index, int blockSize, boolean isMissing) {
+			if (isMissing) {
+				missing.set(index);
+				complete.clear(index);
+			} else {
+				complete.set(index);
+				missing.clear(index);
+			}
+			if (blockSize != FileChunk.CHUNK_SIZE) {
+				sizes.put(index, blockSize);
+			}
+		}
+
+		public int count() {
+			return missing.cardinality() + complete.cardinality();
+		}
 
-		public ChunkUpdate(String imageVersionId, FileRange range, boolean isMissing) {
-			this.imageVersionId = imageVersionId;
-			this.range = range;
-			this.isMissing = isMissing;
+		/**
+		 * Add the updates from an older batch for all chunks this one doesn't
+		 * have an update for.
+		 * 
+		 * @return number of updates added
+		 */
+		public int addOlder(PendingBlocks older) {
+			int added = 0;
+			for (int index = older.missing.nextSetBit(0); index != -1; index = older.missing.nextSetBit(index + 1)) {
+				if (addOlder(older, index, true)) {
+					added++;
+				}
+			}
+			for (int index = older.complete.nextSetBit(0); index != -1; index = older.complete.nextSetBit(index + 1)) {
+				if (addOlder(older, index, false)) {
+					added++;
+				}
+			}
+			return added;
+		}
+
+		private boolean addOlder(PendingBlocks older, int index, boolean isMissing) {
+			if (missing.get(index) || complete.get(index))
+				return false;
+			Integer size = older.sizes.get(index);
+			set(index, size == null ? FileChunk.CHUNK_SIZE : size, isMissing);
+			return true;
 		}
 	}
 
@@ -99,11 +285,20 @@ public class DbImageBlock {
 					+ " (:imageversionid, :startbyte, :blocksize, :blocksha1, :ismissing)");
 			stmt.setString("imageversionid", imageVersionId);
 			stmt.setBoolean("ismissing", missing);
+			final int batchSize = Configuration.getDbBatchSize();
+			int pending = 0;
 			for (FileChunk chunk : all) {
 				stmt.setLong("startbyte", chunk.range.startOffset);
 				stmt.setInt("blocksize", chunk.range.getLength());
 				stmt.setBinary("blocksha1", chunk.getSha1Sum());
-				stmt.executeUpdate();
+				stmt.addBatch();
+				if (++pending >= batchSize) {
+					stmt.executeBatch();
+					pending = 0;
+				}
+			}
+			if (pending != 0) {
+				stmt.executeBatch();
 			}
 			connection.commit();
 		} catch (SQLException e) {
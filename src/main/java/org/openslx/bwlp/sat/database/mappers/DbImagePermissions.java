@@ -10,6 +10,7 @@ import org.apache.logging.log4j.Logger;
 import org.openslx.bwlp.sat.database.Database;
 import org.openslx.bwlp.sat.database.MysqlConnection;
 import org.openslx.bwlp.sat.database.MysqlStatement;
+import org.openslx.bwlp.sat.permissions.PermissionResolver;
 import org.openslx.bwlp.sat.util.Sanitizer;
 import org.openslx.bwlp.thrift.iface.ImagePermissions;
 
@@ -128,6 +129,8 @@ public class DbImagePermissions {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbImagePermissions.writeForImageBase()", e);
 			throw e;
+		} finally {
+			PermissionResolver.invalidateImage(imageBaseId);
 		}
 	}
 
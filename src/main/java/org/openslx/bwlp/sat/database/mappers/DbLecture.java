@@ -16,11 +16,11 @@ import org.openslx.bwlp.sat.database.MysqlConnection;
 import org.openslx.bwlp.sat.database.MysqlStatement;
 import org.openslx.bwlp.sat.database.models.LocalImageVersion;
 import org.openslx.bwlp.sat.mail.MailGenerator;
+import org.openslx.bwlp.sat.permissions.PermissionResolver;
 import org.openslx.bwlp.sat.permissions.User;
 import org.openslx.bwlp.sat.thrift.cache.OperatingSystemList;
-import org.openslx.bwlp.sat.web.VmChooserEntryXml;
+import org.openslx.bwlp.sat.web.LaunchBundleCache;
 import org.openslx.bwlp.sat.web.VmChooserListXml;
-import org.openslx.bwlp.sat.web.XmlFilterEntry;
 import org.openslx.bwlp.thrift.iface.LdapFilter;
 import org.openslx.bwlp.thrift.iface.LectureRead;
 import org.openslx.bwlp.thrift.iface.LectureSummary;
@@ -130,6 +130,7 @@ public class DbLecture {
 				DbLectureFilter.writeForLectureLdap(connection, lectureId, lecture.ldapFilters);
 			}
 			connection.commit();
+			DbLectureIndex.lectureChanged(lectureId);
 			return lectureId;
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbLecture.create()", e);
@@ -172,6 +173,10 @@ public class DbLecture {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbLecture.update()", e);
 			throw e;
+		} finally {
+			PermissionResolver.invalidateLecture(lectureId);
+			DbLectureIndex.lectureChanged(lectureId);
+			LaunchBundleCache.invalidate();
 		}
 	}
 
@@ -188,6 +193,8 @@ public class DbLecture {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbLecture.setOwner()", e);
 			throw e;
+		} finally {
+			PermissionResolver.invalidateLecture(lectureId);
 		}
 	}
 
@@ -244,7 +251,7 @@ public class DbLecture {
 	}
 
 	public static List<LectureSummary> getAll(UserInfo user, int page) throws SQLException {
-		try (MysqlConnection connection = Database.getConnection()) {
+		try (MysqlConnection connection = Database.getReadOnlyConnection()) {
 			MysqlStatement stmt = connection.prepareStatement(summaryBaseSql
 					+ (User.isStudent(user) ? " WHERE i.isrestricted = 0" : ""));
 			stmt.setString("userid", user == null ? "-" : user.userId);
@@ -392,6 +399,10 @@ public class DbLecture {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbLecture.delete()", e);
 			throw e;
+		} finally {
+			PermissionResolver.invalidateLecture(lectureId);
+			DbLectureIndex.lectureChanged(lectureId);
+			LaunchBundleCache.invalidate();
 		}
 		return affected == 1;
 	}
@@ -485,73 +496,25 @@ public class DbLecture {
 
 	public static VmChooserListXml getUsableListXml(boolean exams, String locationsString)
 			throws SQLException {
-		// Sanitize and clean locations string
 		// Input is in the form of "1 2 3 4" or "1" or "  1   4 5"
-		// We want "1,2,3,4" or "1" or "1,4,5"
-		// Do this since we embed this directly into the query
-		String cleanLocations = null;
-		if (Util.isEmptyString(locationsString)) {
-			cleanLocations = "0";
-		} else if (locationsString.indexOf(' ') == -1) {
-			cleanLocations = Integer.toString(org.openslx.util.Util.parseInt(locationsString, 0));
-		} else {
-			String[] array = locationsString.split(" +");
+		int[] locations = new int[0];
+		if (!Util.isEmptyString(locationsString) && !locationsString.trim().isEmpty()) {
+			String[] array = locationsString.trim().split(" +");
+			locations = new int[array.length];
+			int num = 0;
 			for (String loc : array) {
 				int val = org.openslx.util.Util.parseInt(loc, -1);
-				if (val == -1)
+				if (val < 0)
 					continue;
-				if (cleanLocations == null) {
-					cleanLocations = Integer.toString(val);
-				} else {
-					cleanLocations += "," + Integer.toString(val);
-				}
-			}
-			if (cleanLocations == null) {
-				cleanLocations = "0";
+				locations[num++] = val;
 			}
+			locations = Arrays.copyOf(locations, num);
 		}
-		// Query
-		try (MysqlConnection connection = Database.getConnection()) {
-			MysqlStatement stmt = connection.prepareStatement("SELECT"
-					+ " l.lectureid, l.displayname AS lecturename, l.description,"
-					+ " l.islocationprivate, loc.lectureid AS loctest,"
-					+ " l.endtime, l.usecount, o.displayname AS osname, v.virtname, b.istemplate,"
-					+ " v.virtid, ov.virtoskeyword, i.filepath"
-					+ "                      FROM lecture l                 "
-					+ " INNER JOIN imageversion i USING (imageversionid)"
-					+ " INNER JOIN imagebase b USING (imagebaseid)"
-					+ " INNER JOIN operatingsystem o USING (osid)"
-					+ " INNER JOIN virtualizer v USING (virtid)"
-					+ " LEFT JOIN os_x_virt ov USING (osid, virtid)"
-					+ " LEFT JOIN ("
-					+ "  SELECT DISTINCT lectureid FROM lecture_x_location WHERE locationid IN ("
-					+ cleanLocations
-					+ ")"
-					+ " ) loc USING (lectureid)"
-					+ " WHERE l.isenabled = 1 AND l.isprivate = 0 AND l.isexam = :isexam"
-					+ " AND l.starttime < UNIX_TIMESTAMP() AND l.endtime > UNIX_TIMESTAMP() AND i.isvalid = 1");
-			stmt.setBoolean("isexam", exams);
-			ResultSet rs = stmt.executeQuery();
-			VmChooserListXml list = new VmChooserListXml(true);
-			while (rs.next()) {
-				boolean isForThisLocation = rs.getString("loctest") != null;
-				if (!isForThisLocation && rs.getBoolean("islocationprivate"))
-					continue; // Is limited to location, and we're not in one of the required locations
-				String lectureId = rs.getString("lectureid");
-				boolean isTemplate = rs.getBoolean("istemplate");
-				int prio = 100;
-				// Get ldap filters
-				List<XmlFilterEntry> ldapFilters = DbLectureFilter.getFiltersXml(connection, lectureId);
-				list.add(new VmChooserEntryXml(rs.getString("filepath"), prio, "-",
-						rs.getString("lecturename"), rs.getString("description"), lectureId,
-						rs.getString("virtid"), rs.getString("virtname"), rs.getString("virtoskeyword"),
-						rs.getString("osname"), "", isForThisLocation, isTemplate, ldapFilters));
-			}
-			return list;
-		} catch (SQLException e) {
-			LOGGER.error("Query failed in DbLecture.getUsableList()", e);
-			throw e;
+		if (locations.length == 0) {
+			// As before, clients that don't know their location get the lectures of location 0
+			locations = new int[] { 0 };
 		}
+		return DbLectureIndex.getUsableListXml(exams, locations);
 	}
 
 	public static LaunchData getClientLaunchData(String lectureId) throws SQLException,
@@ -607,17 +570,11 @@ public class DbLecture {
 			}
 
 			retval.configuration = configuration;
+			retval.startTime = rs.getLong("starttime");
+			retval.endTime = rs.getLong("endtime");
 			retval.legacyRunScript = rs.getString("runscript");
 			retval.netShares = DbLectureNetshare.getCombinedForLecture(connection, lectureId);
 			retval.runScript = DbRunScript.getRunScriptsForLaunch(connection, lectureId, rs.getInt("osid"));
-
-			// Everything worked so far, update statistics counters
-			MysqlStatement upStmt = connection.prepareStatement("UPDATE"
-					+ " lecture SET lastused = UNIX_TIMESTAMP(), usecount = usecount + 1"
-					+ " WHERE lectureid = :lectureid");
-			upStmt.setString("lectureid", lectureId);
-			upStmt.executeUpdate();
-			connection.commit();
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbLecture.getClientLaunchData()", e);
 			throw e;
@@ -627,7 +584,7 @@ public class DbLecture {
 	}
 
 	public static boolean getFirewallRules(String lectureId, List<NetRule> list) throws SQLException, TNotFoundException {
-		try (MysqlConnection connection = Database.getConnection()) {
+		try (MysqlConnection connection = Database.getReadOnlyConnection()) {
 			MysqlStatement stmt = connection.prepareStatement("SELECT netrules, hasinternetaccess FROM lecture"
 					+ " WHERE lectureid = :lectureid");
 			stmt.setString("lectureid", lectureId);
@@ -692,6 +649,9 @@ public class DbLecture {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbLecture.unlinkFromImageVersion()", e);
 			throw e;
+		} finally {
+			DbLectureIndex.invalidate();
+			LaunchBundleCache.invalidate();
 		}
 	}
 
@@ -720,6 +680,8 @@ public class DbLecture {
 	
 	public static class LaunchData {
 		public byte[] configuration;
+		public long startTime;
+		public long endTime;
 		public List<NetShare> netShares;
 		public String legacyRunScript;
 		public List<RunScript> runScript;
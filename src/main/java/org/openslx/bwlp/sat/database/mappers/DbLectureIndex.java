@@ -0,0 +1,325 @@
+package org.openslx.bwlp.sat.database.mappers;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.Database;
+import org.openslx.bwlp.sat.database.MysqlConnection;
+import org.openslx.bwlp.sat.database.MysqlStatement;
+import org.openslx.bwlp.sat.util.VersionedSnapshot;
+import org.openslx.bwlp.sat.util.VersionedSnapshot.Loader;
+import org.openslx.bwlp.sat.util.VersionedSnapshot.Updater;
+import org.openslx.bwlp.sat.web.VmChooserEntryXml;
+import org.openslx.bwlp.sat.web.VmChooserListXml;
+import org.openslx.bwlp.sat.web.XmlFilterEntry;
+import org.openslx.util.Util;
+
+/**
+ * In-memory index of all enabled, public lectures that have not ended yet,
+ * so the lecture list for the clients can be built without querying the
+ * database. {@link DbLecture} updates single lectures right after writing
+ * them; changes that might affect many lectures at once, like an image
+ * version becoming invalid, trigger a full reload on next access. The index
+ * is also reloaded every few minutes in case something changed behind our
+ * back. Which lectures are currently running is only recomputed when the
+ * next lecture starts or ends.
+ */
+public class DbLectureIndex {
+
+	private static final Logger LOGGER = LogManager.getLogger(DbLectureIndex.class);
+
+	private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(5);
+
+	private static final String LECTURE_SQL = "SELECT"
+			+ " l.lectureid, l.displayname AS lecturename, l.description,"
+			+ " l.islocationprivate, l.isexam, l.starttime, l.endtime,"
+			+ " o.displayname AS osname, v.virtname, b.istemplate,"
+			+ " v.virtid, ov.virtoskeyword, i.filepath"
+			+ " FROM lecture l"
+			+ " INNER JOIN imageversion i USING (imageversionid)"
+			+ " INNER JOIN imagebase b USING (imagebaseid)"
+			+ " INNER JOIN operatingsystem o USING (osid)"
+			+ " INNER JOIN virtualizer v USING (virtid)"
+			+ " LEFT JOIN os_x_virt ov USING (osid, virtid)"
+			+ " WHERE l.isenabled = 1 AND l.isprivate = 0"
+			+ " AND l.endtime > UNIX_TIMESTAMP() AND i.isvalid = 1";
+
+	private static final String LOCATION_SQL = "SELECT x.lectureid, x.locationid"
+			+ " FROM lecture_x_location x"
+			+ " INNER JOIN lecture l USING (lectureid)"
+			+ " WHERE l.isenabled = 1 AND l.isprivate = 0 AND l.endtime > UNIX_TIMESTAMP()";
+
+	private static final String FILTER_SQL = "SELECT f.lectureid,"
+			+ " IFNULL(p.filterkey, f.filterkey) AS filterkey, IFNULL(p.filtervalue, f.filtervalue) AS filtervalue"
+			+ " FROM lecturefilter f"
+			+ " INNER JOIN lecture l USING (lectureid)"
+			+ " LEFT JOIN presetlecturefilter p ON (f.filterpresetid = p.filterid)"
+			+ " WHERE (f.filtertype = 'LDAP' OR p.filtertype = 'LDAP')"
+			+ " AND l.isenabled = 1 AND l.isprivate = 0 AND l.endtime > UNIX_TIMESTAMP()";
+
+	public static class Lecture {
+		private final String lectureId;
+		private final String lectureName;
+		private final String description;
+		private final boolean isExam;
+		private final boolean isLocationPrivate;
+		private final long startTime;
+		private final long endTime;
+		private final String osName;
+		private final String virtId;
+		private final String virtName;
+		private final String virtOsKeyword;
+		private final boolean isTemplate;
+		private final String filePath;
+		private final BitSet locations = new BitSet();
+		private List<XmlFilterEntry> ldapFilters = null;
+		/*
+		 * The entries for the client only differ in whether the lecture is
+		 * assigned to its location, so build both once the filters are known
+		 */
+		private VmChooserEntryXml forLocation;
+		private VmChooserEntryXml notForLocation;
+
+		private Lecture(ResultSet rs) throws SQLException {
+			this.lectureId = rs.getString("lectureid");
+			this.lectureName = rs.getString("lecturename");
+			this.description = rs.getString("description");
+			this.isExam = rs.getBoolean("isexam");
+			this.isLocationPrivate = rs.getBoolean("islocationprivate");
+			this.startTime = rs.getLong("starttime");
+			this.endTime = rs.getLong("endtime");
+			this.osName = rs.getString("osname");
+			this.virtId = rs.getString("virtid");
+			this.virtName = rs.getString("virtname");
+			this.virtOsKeyword = rs.getString("virtoskeyword");
+			this.isTemplate = rs.getBoolean("istemplate");
+			this.filePath = rs.getString("filepath");
+		}
+
+		/**
+		 * Only sets what {@link DbLectureIndex#computeActive(Collection, long)}
+		 * needs, for tests
+		 */
+		public Lecture(String lectureId, boolean isExam, long startTime, long endTime) {
+			this.lectureId = lectureId;
+			this.lectureName = null;
+			this.description = null;
+			this.isExam = isExam;
+			this.isLocationPrivate = false;
+			this.startTime = startTime;
+			this.endTime = endTime;
+			this.osName = null;
+			this.virtId = null;
+			this.virtName = null;
+			this.virtOsKeyword = null;
+			this.isTemplate = false;
+			this.filePath = null;
+		}
+
+		private void buildEntries() {
+			forLocation = entry(true);
+			notForLocation = entry(false);
+		}
+
+		private VmChooserEntryXml entry(boolean isForThisLocation) {
+			return new VmChooserEntryXml(filePath, 100, "-", lectureName, description, lectureId, virtId,
+					virtName, virtOsKeyword, osName, "", isForThisLocation, isTemplate, ldapFilters);
+		}
+
+		private boolean isActive(long now) {
+			return startTime < now && endTime > now;
+		}
+	}
+
+	/**
+	 * Lectures running right now, valid until the next lecture starts or ends
+	 */
+	public static class Active {
+		public final List<Lecture> lectures;
+		public final List<Lecture> exams;
+		public final long validUntil;
+
+		private Active(List<Lecture> lectures, List<Lecture> exams, long validUntil) {
+			this.lectures = lectures;
+			this.exams = exams;
+			this.validUntil = validUntil;
+		}
+	}
+
+	/**
+	 * Work out which of the given lectures are running at <code>now</code>,
+	 * and until when that stays the same.
+	 */
+	public static Active computeActive(Collection<Lecture> lectures, long now) {
+		List<Lecture> list = new ArrayList<>();
+		List<Lecture> exams = new ArrayList<>();
+		long validUntil = Long.MAX_VALUE;
+		for (Lecture lecture : lectures) {
+			if (lecture.isActive(now)) {
+				(lecture.isExam ? exams : list).add(lecture);
+			}
+			// starttime < now, so it becomes active one second after starting
+			if (lecture.startTime >= now) {
+				validUntil = Math.min(validUntil, lecture.startTime + 1);
+			} else if (lecture.endTime > now) {
+				validUntil = Math.min(validUntil, lecture.endTime);
+			}
+		}
+		return new Active(list, exams, validUntil);
+	}
+
+	private static class Snapshot {
+		private final Map<String, Lecture> lectures;
+		private volatile Active active = null;
+
+		private Snapshot(Map<String, Lecture> lectures) {
+			this.lectures = lectures;
+		}
+
+		private Active getActive() {
+			final long now = Util.unixTime();
+			Active a = active;
+			if (a != null && now < a.validUntil)
+				return a;
+			a = computeActive(lectures.values(), now);
+			active = a;
+			return a;
+		}
+	}
+
+	private static final VersionedSnapshot<Snapshot> index = new VersionedSnapshot<>("lecture index", MAX_AGE,
+			new Loader<Snapshot>() {
+				@Override
+				public Snapshot load() throws SQLException {
+					try (MysqlConnection connection = Database.getConnection()) {
+						return new Snapshot(Collections.unmodifiableMap(DbLectureIndex.load(connection, null)));
+					} catch (SQLException e) {
+						LOGGER.error("Query failed in DbLectureIndex.load()", e);
+						throw e;
+					}
+				}
+			});
+
+	/**
+	 * Get the list of currently running lectures for a client in the given
+	 * locations. Lectures limited to other locations are left out.
+	 */
+	public static VmChooserListXml getUsableListXml(boolean exams, int[] locations) throws SQLException {
+		Active active = index.get().getActive();
+		VmChooserListXml list = new VmChooserListXml(true);
+		for (Lecture lecture : exams ? active.exams : active.lectures) {
+			boolean isForThisLocation = false;
+			for (int location : locations) {
+				if (lecture.locations.get(location)) {
+					isForThisLocation = true;
+					break;
+				}
+			}
+			if (isForThisLocation) {
+				list.add(lecture.forLocation);
+			} else if (!lecture.isLocationPrivate) {
+				list.add(lecture.notForLocation);
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Reload the given lecture after it was created, modified or deleted.
+	 * Must be called after committing the change.
+	 */
+	public static void lectureChanged(final String lectureId) {
+		if (index.getIfLoaded() == null)
+			return;
+		final long change = index.beginUpdate();
+		final Map<String, Lecture> loaded;
+		try (MysqlConnection connection = Database.getConnection()) {
+			loaded = load(connection, lectureId);
+		} catch (SQLException e) {
+			LOGGER.warn("Could not update lecture " + lectureId + " in index, reloading all", e);
+			invalidate();
+			return;
+		}
+		index.update(change, new Updater<Snapshot>() {
+			@Override
+			public Snapshot update(Snapshot current) {
+				Map<String, Lecture> map = new HashMap<>(current.lectures);
+				map.remove(lectureId);
+				map.putAll(loaded);
+				return new Snapshot(Collections.unmodifiableMap(map));
+			}
+		});
+	}
+
+	/**
+	 * Something changed that might affect many lectures, like an image
+	 * version's validity, so reload everything on next access.
+	 */
+	public static void invalidate() {
+		index.invalidate();
+	}
+
+	/**
+	 * Load the given lecture, or all lectures if lectureId is <code>null</code>.
+	 * The map will be empty if the lecture is disabled, private or over.
+	 */
+	private static Map<String, Lecture> load(MysqlConnection connection, String lectureId)
+			throws SQLException {
+		String where = lectureId == null ? "" : " AND l.lectureid = :lectureid";
+		Map<String, Lecture> map = new HashMap<>();
+		MysqlStatement stmt = connection.prepareStatement(LECTURE_SQL + where);
+		if (lectureId != null) {
+			stmt.setString("lectureid", lectureId);
+		}
+		ResultSet rs = stmt.executeQuery();
+		while (rs.next()) {
+			map.put(rs.getString("lectureid"), new Lecture(rs));
+		}
+		if (map.isEmpty())
+			return map;
+		// Locations
+		stmt = connection.prepareStatement(LOCATION_SQL + where);
+		if (lectureId != null) {
+			stmt.setString("lectureid", lectureId);
+		}
+		rs = stmt.executeQuery();
+		while (rs.next()) {
+			Lecture lecture = map.get(rs.getString("lectureid"));
+			int locationId = rs.getInt("locationid");
+			if (lecture != null && locationId >= 0) {
+				lecture.locations.set(locationId);
+			}
+		}
+		// LDAP filters
+		stmt = connection.prepareStatement(FILTER_SQL + where);
+		if (lectureId != null) {
+			stmt.setString("lectureid", lectureId);
+		}
+		rs = stmt.executeQuery();
+		while (rs.next()) {
+			Lecture lecture = map.get(rs.getString("lectureid"));
+			if (lecture == null)
+				continue;
+			if (lecture.ldapFilters == null) {
+				lecture.ldapFilters = new ArrayList<>();
+			}
+			lecture.ldapFilters.add(new XmlFilterEntry("LDAP", rs.getString("filterkey"),
+					rs.getString("filtervalue")));
+		}
+		for (Lecture lecture : map.values()) {
+			lecture.buildEntries();
+		}
+		return map;
+	}
+
+}
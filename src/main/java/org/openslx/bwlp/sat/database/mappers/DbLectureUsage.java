@@ -0,0 +1,134 @@
+package org.openslx.bwlp.sat.database.mappers;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.Database;
+import org.openslx.bwlp.sat.database.MysqlConnection;
+import org.openslx.bwlp.sat.database.MysqlStatement;
+import org.openslx.util.QuickTimer;
+import org.openslx.util.QuickTimer.Task;
+import org.openslx.util.Util;
+
+/**
+ * Counts lecture launches in memory and writes them to the database
+ * periodically, so a room full of clients starting the same lecture doesn't
+ * fight over the lecture's row. {@link #flush()} must be called on shutdown
+ * to not lose any counts.
+ */
+public class DbLectureUsage {
+
+	private static final Logger LOGGER = LogManager.getLogger(DbLectureUsage.class);
+
+	private static final long FLUSH_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+	private static class Usage {
+		private final LongAdder count = new LongAdder();
+		private volatile long lastUsed;
+		/**
+		 * Set when the entry was dropped from the map for being idle
+		 */
+		private volatile boolean removed = false;
+	}
+
+	private static final ConcurrentHashMap<String, Usage> usages = new ConcurrentHashMap<>();
+
+	private static boolean initialized = false;
+
+	/**
+	 * Start flushing the counters every minute.
+	 */
+	public static synchronized void init() {
+		if (initialized)
+			return;
+		initialized = true;
+		QuickTimer.scheduleAtFixedRate(new Task() {
+			@Override
+			public void fire() {
+				flush();
+			}
+		}, FLUSH_INTERVAL, FLUSH_INTERVAL);
+	}
+
+	/**
+	 * A client started the given lecture.
+	 */
+	public static void countLaunch(String lectureId) {
+		final long now = Util.unixTime();
+		for (;;) {
+			Usage usage = usages.get(lectureId);
+			if (usage == null) {
+				usage = new Usage();
+				Usage existing = usages.putIfAbsent(lectureId, usage);
+				if (existing != null) {
+					usage = existing;
+				}
+			}
+			usage.count.increment();
+			usage.lastUsed = now;
+			if (!usage.removed)
+				return;
+			// Raced with flush dropping the entry; count again in a fresh one. Worst case,
+			// this counts the launch twice, which is better than losing it.
+		}
+	}
+
+	/**
+	 * Write all pending counts to the database, with one batched update.
+	 */
+	public static synchronized void flush() {
+		List<String> ids = new ArrayList<>();
+		List<Long> counts = new ArrayList<>();
+		List<Long> times = new ArrayList<>();
+		for (Map.Entry<String, Usage> entry : usages.entrySet()) {
+			Usage usage = entry.getValue();
+			long count = usage.count.sumThenReset();
+			if (count == 0) {
+				// Idle for a whole interval, drop it
+				usage.removed = true;
+				usages.remove(entry.getKey(), usage);
+				count = usage.count.sumThenReset();
+				if (count == 0)
+					continue;
+			}
+			ids.add(entry.getKey());
+			counts.add(count);
+			times.add(usage.lastUsed);
+		}
+		if (ids.isEmpty())
+			return;
+		try (MysqlConnection connection = Database.getConnection()) {
+			MysqlStatement stmt = connection.prepareStatement("UPDATE lecture"
+					+ " SET lastused = GREATEST(lastused, :lastused), usecount = usecount + :count"
+					+ " WHERE lectureid = :lectureid");
+			for (int i = 0; i < ids.size(); ++i) {
+				stmt.setString("lectureid", ids.get(i));
+				stmt.setLong("count", counts.get(i));
+				stmt.setLong("lastused", times.get(i));
+				stmt.addBatch();
+			}
+			stmt.executeBatch();
+			connection.commit();
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbLectureUsage.flush()", e);
+			// Try again next time
+			for (int i = 0; i < ids.size(); ++i) {
+				Usage usage = new Usage();
+				usage.lastUsed = times.get(i);
+				Usage existing = usages.putIfAbsent(ids.get(i), usage);
+				if (existing != null) {
+					usage = existing;
+				}
+				usage.count.add(counts.get(i));
+			}
+		}
+	}
+
+}
@@ -4,6 +4,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -11,12 +12,28 @@ import org.openslx.bwlp.sat.database.Database;
 import org.openslx.bwlp.sat.database.MysqlConnection;
 import org.openslx.bwlp.sat.database.MysqlStatement;
 import org.openslx.bwlp.sat.database.models.LocalOrganization;
+import org.openslx.bwlp.sat.util.RefreshAheadCache;
+import org.openslx.bwlp.sat.util.RefreshAheadCache.Loader;
 import org.openslx.bwlp.thrift.iface.Organization;
 
 public class DbOrganization {
 
 	private static final Logger LOGGER = LogManager.getLogger(DbOrganization.class);
 
+	/**
+	 * Cache for {@link #getLocalData(String)}. Unknown organizations are
+	 * cached as <code>null</code>, so storing organizations clears the whole
+	 * cache. Changes made elsewhere are picked up after 15 seconds.
+	 */
+	private static final RefreshAheadCache<String, LocalOrganization> localCache = new RefreshAheadCache<>(
+			TimeUnit.SECONDS.toMillis(15), TimeUnit.MINUTES.toMillis(1),
+			new Loader<String, LocalOrganization>() {
+				@Override
+				public LocalOrganization load(String organizationId) throws SQLException {
+					return loadLocalData(organizationId);
+				}
+			});
+
 	/**
 	 * Store the given list of organizations (coming from the master server) to
 	 * the database, or update the meta data of the organizations, if already
@@ -41,6 +58,8 @@ public class DbOrganization {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbOrganization.storeOrganization()", e);
 			throw e;
+		} finally {
+			localCache.invalidateAll();
 		}
 	}
 
@@ -53,6 +72,10 @@ public class DbOrganization {
 	 * @throws SQLException
 	 */
 	public static LocalOrganization getLocalData(String organizationId) throws SQLException {
+		return localCache.get(organizationId);
+	}
+
+	private static LocalOrganization loadLocalData(String organizationId) throws SQLException {
 		try (MysqlConnection connection = Database.getConnection()) {
 			MysqlStatement stmt = connection.prepareStatement("SELECT canlogin FROM organization"
 					+ " WHERE organizationid = :organizationid");
@@ -109,6 +132,8 @@ public class DbOrganization {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbOrganization.setCanLogin()", e);
 			throw e;
+		} finally {
+			localCache.invalidate(organizationId);
 		}
 	}
 
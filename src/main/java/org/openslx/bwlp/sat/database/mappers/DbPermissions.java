@@ -0,0 +1,138 @@
+package org.openslx.bwlp.sat.database.mappers;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.Database;
+import org.openslx.bwlp.sat.database.MysqlConnection;
+import org.openslx.bwlp.sat.database.MysqlStatement;
+import org.openslx.bwlp.thrift.iface.ImagePermissions;
+import org.openslx.bwlp.thrift.iface.LecturePermissions;
+import org.openslx.bwlp.thrift.iface.ShareMode;
+import org.openslx.bwlp.thrift.iface.TNotFoundException;
+
+/**
+ * Minimal queries for permission checks. These only fetch the columns needed
+ * to decide whether an operation is allowed, instead of loading the full
+ * image or lecture.
+ */
+public class DbPermissions {
+
+	private static final Logger LOGGER = LogManager.getLogger(DbPermissions.class);
+
+	public static class ImageAccess {
+		public final String ownerId;
+		/**
+		 * Permissions of the user, <code>null</code> if the user has none
+		 */
+		public final ImagePermissions userPermissions;
+		public final ImagePermissions defaultPermissions;
+
+		private ImageAccess(String ownerId, ImagePermissions userPermissions,
+				ImagePermissions defaultPermissions) {
+			this.ownerId = ownerId;
+			this.userPermissions = userPermissions;
+			this.defaultPermissions = defaultPermissions;
+		}
+	}
+
+	public static class LectureAccess {
+		public final String ownerId;
+		/**
+		 * Permissions of the user, <code>null</code> if the user has none
+		 */
+		public final LecturePermissions userPermissions;
+		public final LecturePermissions defaultPermissions;
+
+		private LectureAccess(String ownerId, LecturePermissions userPermissions,
+				LecturePermissions defaultPermissions) {
+			this.ownerId = ownerId;
+			this.userPermissions = userPermissions;
+			this.defaultPermissions = defaultPermissions;
+		}
+	}
+
+	public static class VersionAccess {
+		public final String imageBaseId;
+		public final String uploaderId;
+		public final boolean isRestricted;
+		public final ShareMode shareMode;
+		public final String latestVersionId;
+
+		private VersionAccess(String imageBaseId, String uploaderId, boolean isRestricted,
+				ShareMode shareMode, String latestVersionId) {
+			this.imageBaseId = imageBaseId;
+			this.uploaderId = uploaderId;
+			this.isRestricted = isRestricted;
+			this.shareMode = shareMode;
+			this.latestVersionId = latestVersionId;
+		}
+	}
+
+	public static ImageAccess getImageAccess(String userId, String imageBaseId) throws SQLException,
+			TNotFoundException {
+		try (MysqlConnection connection = Database.getConnection()) {
+			MysqlStatement stmt = connection.prepareStatement("SELECT i.ownerid,"
+					+ " i.canlinkdefault, i.candownloaddefault, i.caneditdefault, i.canadmindefault,"
+					+ " perm.canlink, perm.candownload, perm.canedit, perm.canadmin"
+					+ " FROM imagebase i"
+					+ " LEFT JOIN imagepermission perm ON (i.imagebaseid = perm.imagebaseid AND perm.userid = :userid)"
+					+ " WHERE i.imagebaseid = :imagebaseid");
+			stmt.setString("userid", userId);
+			stmt.setString("imagebaseid", imageBaseId);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next())
+				throw new TNotFoundException();
+			return new ImageAccess(rs.getString("ownerid"), DbImagePermissions.fromResultSetUser(rs),
+					DbImagePermissions.fromResultSetDefault(rs));
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbPermissions.getImageAccess()", e);
+			throw e;
+		}
+	}
+
+	public static LectureAccess getLectureAccess(String userId, String lectureId) throws SQLException,
+			TNotFoundException {
+		try (MysqlConnection connection = Database.getConnection()) {
+			MysqlStatement stmt = connection.prepareStatement("SELECT l.ownerid,"
+					+ " l.caneditdefault, l.canadmindefault, perm.canedit, perm.canadmin"
+					+ " FROM lecture l"
+					+ " LEFT JOIN lecturepermission perm ON (perm.lectureid = l.lectureid AND perm.userid = :userid)"
+					+ " WHERE l.lectureid = :lectureid");
+			stmt.setString("userid", userId);
+			stmt.setString("lectureid", lectureId);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next())
+				throw new TNotFoundException();
+			return new LectureAccess(rs.getString("ownerid"), DbLecturePermissions.fromResultSetUser(rs),
+					DbLecturePermissions.fromResultSetDefault(rs));
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbPermissions.getLectureAccess()", e);
+			throw e;
+		}
+	}
+
+	public static VersionAccess getVersionAccess(String imageVersionId) throws SQLException,
+			TNotFoundException {
+		try (MysqlConnection connection = Database.getConnection()) {
+			MysqlStatement stmt = connection.prepareStatement("SELECT v.imagebaseid, v.uploaderid,"
+					+ " v.isrestricted, i.sharemode, i.latestversionid"
+					+ " FROM imageversion v"
+					+ " INNER JOIN imagebase i USING (imagebaseid)"
+					+ " WHERE v.imageversionid = :imageversionid");
+			stmt.setString("imageversionid", imageVersionId);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next())
+				throw new TNotFoundException();
+			return new VersionAccess(rs.getString("imagebaseid"), rs.getString("uploaderid"),
+					rs.getByte("isrestricted") != 0, ShareMode.valueOf(rs.getString("sharemode")),
+					rs.getString("latestversionid"));
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbPermissions.getVersionAccess()", e);
+			throw e;
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package org.openslx.bwlp.sat.database.mappers;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openslx.bwlp.sat.util.VersionedSnapshot;
+import org.openslx.bwlp.sat.util.VersionedSnapshot.Loader;
+import org.openslx.bwlp.thrift.iface.LdapFilter;
+import org.openslx.bwlp.thrift.iface.Location;
+import org.openslx.bwlp.thrift.iface.NetShare;
+import org.openslx.bwlp.thrift.iface.PresetNetRule;
+import org.openslx.bwlp.thrift.iface.PresetRunScript;
+
+/**
+ * In-memory copy of the preset tables and the location list, which every
+ * client requests when opening the lecture editor. These are mostly edited
+ * through the web interface, which calls {@link #invalidate()} via the web
+ * RPC; the data is reloaded every few minutes anyways in case it was changed
+ * behind our back. The returned lists are shared and must not be modified.
+ */
+public class DbReferenceData {
+
+	private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(5);
+
+	public static class Snapshot {
+		public final List<LdapFilter> ldapFilters;
+		public final List<NetShare> netShares;
+		public final List<PresetRunScript> runScripts;
+		public final List<PresetNetRule> networkRules;
+		public final List<Location> locations;
+
+		private Snapshot() throws SQLException {
+			this.ldapFilters = Collections.unmodifiableList(DbLectureFilter.getPredefinedLdap());
+			this.netShares = Collections.unmodifiableList(DbLectureNetshare.getPredefined());
+			this.runScripts = Collections.unmodifiableList(DbRunScript.getPredefinedRunScripts());
+			this.networkRules = Collections.unmodifiableList(DbLectureNetworkRules.getPredefined());
+			this.locations = Collections.unmodifiableList(DbLocation.getLocations());
+		}
+	}
+
+	private static final VersionedSnapshot<Snapshot> snapshot = new VersionedSnapshot<>("reference data",
+			MAX_AGE, new Loader<Snapshot>() {
+				@Override
+				public Snapshot load() throws SQLException {
+					return new Snapshot();
+				}
+			});
+
+	/**
+	 * Get the current reference data. If it's outdated, the caller noticing
+	 * reloads it, while everybody else gets the old data meanwhile.
+	 */
+	public static Snapshot get() throws SQLException {
+		return snapshot.get();
+	}
+
+	/**
+	 * @return counter that changes whenever presets or locations change
+	 */
+	public static long getVersion() {
+		return snapshot.getVersion();
+	}
+
+	/**
+	 * Presets or locations changed, reload on next access.
+	 */
+	public static void invalidate() {
+		snapshot.invalidate();
+	}
+
+}
@@ -0,0 +1,123 @@
+package org.openslx.bwlp.sat.database.mappers;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.Database;
+import org.openslx.bwlp.sat.database.MysqlConnection;
+import org.openslx.bwlp.sat.database.MysqlStatement;
+import org.openslx.bwlp.thrift.iface.UserInfo;
+import org.openslx.util.Json;
+
+/**
+ * Persisted user sessions. Sessions are keyed by a hash of the token, so the
+ * tokens themselves never end up in the database.
+ */
+public class DbSession {
+
+	private static final Logger LOGGER = LogManager.getLogger(DbSession.class);
+
+	public static class Session {
+		public final UserInfo user;
+		public final long validUntil;
+
+		public Session(UserInfo user, long validUntil) {
+			this.user = user;
+			this.validUntil = validUntil;
+		}
+	}
+
+	/**
+	 * Get the session with the given token hash, or <code>null</code> if it
+	 * doesn't exist or expired.
+	 */
+	public static Session get(String tokenHash, long now) throws SQLException {
+		try (MysqlConnection connection = Database.getConnection()) {
+			MysqlStatement stmt = connection.prepareStatement("SELECT userinfo, validuntil FROM usersession"
+					+ " WHERE tokenhash = :tokenhash AND validuntil >= :now");
+			stmt.setString("tokenhash", tokenHash);
+			stmt.setLong("now", now);
+			ResultSet rs = stmt.executeQuery();
+			if (!rs.next())
+				return null;
+			UserInfo user = Json.deserialize(rs.getString("userinfo"), UserInfo.class);
+			if (user == null)
+				return null;
+			return new Session(user, rs.getLong("validuntil"));
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbSession.get()", e);
+			throw e;
+		}
+	}
+
+	public static void put(String tokenHash, UserInfo user, long validUntil) throws SQLException {
+		try (MysqlConnection connection = Database.getConnection()) {
+			MysqlStatement stmt = connection.prepareStatement("INSERT INTO usersession"
+					+ " (tokenhash, userinfo, validuntil) VALUES (:tokenhash, :userinfo, :validuntil)"
+					+ " ON DUPLICATE KEY UPDATE userinfo = VALUES(userinfo), validuntil = VALUES(validuntil)");
+			stmt.setString("tokenhash", tokenHash);
+			stmt.setString("userinfo", Json.serialize(user));
+			stmt.setLong("validuntil", validUntil);
+			stmt.executeUpdate();
+			connection.commit();
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbSession.put()", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Extend the validity of the given session.
+	 *
+	 * @return false if the session doesn't exist (anymore)
+	 */
+	public static boolean touch(String tokenHash, long validUntil) throws SQLException {
+		try (MysqlConnection connection = Database.getConnection()) {
+			MysqlStatement stmt = connection.prepareStatement("UPDATE usersession SET validuntil = :validuntil"
+					+ " WHERE tokenhash = :tokenhash");
+			stmt.setString("tokenhash", tokenHash);
+			stmt.setLong("validuntil", validUntil);
+			int rows = stmt.executeUpdate();
+			connection.commit();
+			return rows != 0;
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbSession.touch()", e);
+			throw e;
+		}
+	}
+
+	public static void delete(String tokenHash) throws SQLException {
+		try (MysqlConnection connection = Database.getConnection()) {
+			MysqlStatement stmt = connection.prepareStatement("DELETE FROM usersession"
+					+ " WHERE tokenhash = :tokenhash");
+			stmt.setString("tokenhash", tokenHash);
+			stmt.executeUpdate();
+			connection.commit();
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbSession.delete()", e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Delete all sessions that expired before the given time.
+	 *
+	 * @return number of deleted sessions
+	 */
+	public static int deleteExpired(long now) throws SQLException {
+		try (MysqlConnection connection = Database.getConnection()) {
+			MysqlStatement stmt = connection.prepareStatement("DELETE FROM usersession"
+					+ " WHERE validuntil < :now");
+			stmt.setLong("now", now);
+			int rows = stmt.executeUpdate();
+			connection.commit();
+			return rows;
+		} catch (SQLException e) {
+			LOGGER.error("Query failed in DbSession.deleteExpired()", e);
+			throw e;
+		}
+	}
+
+}
@@ -6,6 +6,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -14,13 +15,16 @@ import org.openslx.bwlp.sat.database.Database;
 import org.openslx.bwlp.sat.database.MysqlConnection;
 import org.openslx.bwlp.sat.database.MysqlStatement;
 import org.openslx.bwlp.sat.database.Paginator;
+import org.openslx.bwlp.sat.database.Paginator.Page;
+import org.openslx.bwlp.sat.database.Paginator.PageIndex;
 import org.openslx.bwlp.sat.database.models.LocalUser;
+import org.openslx.bwlp.sat.util.RefreshAheadCache;
+import org.openslx.bwlp.sat.util.RefreshAheadCache.Loader;
 import org.openslx.bwlp.thrift.iface.SatelliteUserConfig;
 import org.openslx.bwlp.thrift.iface.TNotFoundException;
 import org.openslx.bwlp.thrift.iface.UserInfo;
 import org.openslx.util.QuickTimer;
 import org.openslx.util.QuickTimer.Task;
-import org.openslx.util.TimeoutHashMap;
 import org.openslx.util.Util;
 
 public class DbUser {
@@ -39,7 +43,24 @@ public class DbUser {
 
 	private static final Logger LOGGER = LogManager.getLogger(DbUser.class);
 
-	private static Map<String, User> userCache = new TimeoutHashMap<>(TimeUnit.MINUTES.toMillis(15));
+	/**
+	 * Cache for single user lookups, used by the permission checks on almost
+	 * every call. Unknown users are cached as <code>null</code>. All writes to
+	 * the user table invalidate the affected entry. Changes made elsewhere,
+	 * e.g. through the web interface, are picked up after 15 seconds.
+	 */
+	private static final RefreshAheadCache<String, User> userCache = new RefreshAheadCache<>(
+			TimeUnit.SECONDS.toMillis(15), TimeUnit.MINUTES.toMillis(1), new Loader<String, User>() {
+				@Override
+				public User load(String userId) throws SQLException {
+					return loadUser(userId);
+				}
+			});
+
+	/**
+	 * Maps page numbers to userids for {@link #getAll(int)}.
+	 */
+	private static final PageIndex pageIndex = new PageIndex();
 
 	/**
 	 * Get all users, starting at page <code>page</code>.
@@ -53,14 +74,18 @@ public class DbUser {
 	public static List<UserInfo> getAll(int page) throws SQLException {
 		if (page < 0)
 			return new ArrayList<>(1);
-		try (MysqlConnection connection = Database.getConnection()) {
-			MysqlStatement stmt = connection.prepareStatement("SELECT userid, firstname, lastname, email, organizationid"
-					+ " FROM user ORDER BY userid ASC " + Paginator.limitStatement(page));
-			ResultSet rs = stmt.executeQuery();
-			List<UserInfo> list = new ArrayList<>();
-			while (rs.next()) {
-				list.add(new UserInfo(rs.getString("userid"), rs.getString("firstname"),
-						rs.getString("lastname"), rs.getString("email"), rs.getString("organizationid")));
+		try (MysqlConnection connection = Database.getReadOnlyConnection()) {
+			String after = pageIndex.getStartKey(page);
+			if (after == null) {
+				Map.Entry<Integer, String> closest = pageIndex.getClosest(page);
+				after = seek(connection, closest.getValue(), (page - closest.getKey()) * Paginator.PER_PAGE);
+				if (after == null)
+					return new ArrayList<>(1);
+				pageIndex.setStartKey(page, after);
+			}
+			List<UserInfo> list = getAllAfter(connection, after);
+			if (list.size() == Paginator.PER_PAGE) {
+				pageIndex.setStartKey(page + 1, list.get(list.size() - 1).userId);
 			}
 			return list;
 		} catch (SQLException e) {
@@ -69,23 +94,64 @@ public class DbUser {
 		}
 	}
 
-	public static UserInfo getOrNull(String userId) throws SQLException {
-		try (MysqlConnection connection = Database.getConnection()) {
-			MysqlStatement stmt = connection.prepareStatement("SELECT userid, firstname, lastname, email, organizationid"
-					+ " FROM user WHERE userid = :userid");
-			stmt.setString("userid", userId);
-			ResultSet rs = stmt.executeQuery();
-			if (rs.next()) {
-				return new UserInfo(rs.getString("userid"), rs.getString("firstname"),
-						rs.getString("lastname"), rs.getString("email"), rs.getString("organizationid"));
-			}
-			return null;
+	/**
+	 * Get one page of users, ordered by userid.
+	 * 
+	 * @param token continuation token of the previous page, or
+	 *            <code>null</code> for the first page
+	 * @return page of users, and the token for the next one
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	public static Page<UserInfo> getPage(String token) throws SQLException {
+		String after = Paginator.decodeToken(token);
+		try (MysqlConnection connection = Database.getReadOnlyConnection()) {
+			List<UserInfo> list = getAllAfter(connection, after);
+			return new Page<>(list, list.isEmpty() ? null : list.get(list.size() - 1).userId);
 		} catch (SQLException e) {
-			LOGGER.error("Query failed in DbUser.getAll()", e);
+			LOGGER.error("Query failed in DbUser.getPage()", e);
 			throw e;
 		}
 	}
 
+	private static List<UserInfo> getAllAfter(MysqlConnection connection, String after) throws SQLException {
+		MysqlStatement stmt = connection.prepareStatement("SELECT userid, firstname, lastname, email, organizationid"
+				+ " FROM user WHERE userid > :after ORDER BY userid ASC LIMIT " + Paginator.PER_PAGE);
+		stmt.setString("after", after);
+		ResultSet rs = stmt.executeQuery();
+		List<UserInfo> list = new ArrayList<>();
+		while (rs.next()) {
+			list.add(new UserInfo(rs.getString("userid"), rs.getString("firstname"),
+					rs.getString("lastname"), rs.getString("email"), rs.getString("organizationid")));
+		}
+		return list;
+	}
+
+	/**
+	 * Get the userid <code>skip</code> rows after the given one, i.e. the key
+	 * after which the page starting that many rows later begins.
+	 */
+	private static String seek(MysqlConnection connection, String after, int skip) throws SQLException {
+		MysqlStatement stmt = connection.prepareStatement("SELECT userid FROM user"
+				+ " WHERE userid > :after ORDER BY userid ASC LIMIT :skip, 1");
+		stmt.setString("after", after);
+		stmt.setInt("skip", skip - 1);
+		ResultSet rs = stmt.executeQuery();
+		if (!rs.next())
+			return null;
+		return rs.getString("userid");
+	}
+
+	/**
+	 * Get the given user, or <code>null</code> if not known. The returned
+	 * object is a copy and may be modified by the caller.
+	 */
+	public static UserInfo getOrNull(String userId) throws SQLException {
+		User user = userCache.get(userId);
+		if (user == null)
+			return null;
+		return new UserInfo(user.ui);
+	}
+
 	/**
 	 * Get local-only information for given user.
 	 * 
@@ -95,19 +161,10 @@ public class DbUser {
 	 * @throws SQLException
 	 */
 	public static LocalUser getLocalData(UserInfo user) throws SQLException {
-		try (MysqlConnection connection = Database.getConnection()) {
-			MysqlStatement stmt = connection.prepareStatement("SELECT lastlogin, canlogin, issuperuser, emailnotifications"
-					+ " FROM user WHERE userid = :userid LIMIT 1");
-			stmt.setString("userid", user.userId);
-			ResultSet rs = stmt.executeQuery();
-			if (!rs.next())
-				return null;
-			return new LocalUser(rs.getLong("lastlogin"), rs.getBoolean("canlogin"),
-					rs.getBoolean("issuperuser"), rs.getBoolean("emailnotifications"));
-		} catch (SQLException e) {
-			LOGGER.error("Query failed in DbUser.getLocalData()", e);
-			throw e;
-		}
+		User cached = userCache.get(user.userId);
+		if (cached == null)
+			return null;
+		return cached.local;
 	}
 
 	public static void writeUserConfig(UserInfo user, SatelliteUserConfig config) throws SQLException {
@@ -121,6 +178,8 @@ public class DbUser {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbUser.writeUserConfig()", e);
 			throw e;
+		} finally {
+			userCache.invalidate(user.userId);
 		}
 	}
 
@@ -183,6 +242,8 @@ public class DbUser {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in DbUser.writeUserOnLogin()", e);
 			throw e;
+		} finally {
+			userCache.invalidate(ui.userId);
 		}
 		if (recheckLegacy) {
 			// Run check again
@@ -216,6 +277,7 @@ public class DbUser {
 		insUpStmt.setString("organizationid", ui.organizationId);
 		insUpStmt.setString("olduserid", oldId);
 		insUpStmt.executeUpdate();
+		userCache.invalidate(oldId);
 		if (!ui.userId.equals(oldId)) {
 			// Be extra safe: in case the update failed (dup key?) we patch the old entry so it doesn't look like an old one anymore
 			MysqlStatement fixStmt = connection.prepareStatement("UPDATE user SET"
@@ -244,11 +306,13 @@ public class DbUser {
 	}
 
 	public static User getCached(String userId) throws SQLException, TNotFoundException {
-		synchronized (DbUser.class) {
-			User user = userCache.get(userId);
-			if (user != null)
-				return user;
-		}
+		User user = userCache.get(userId);
+		if (user == null)
+			throw new TNotFoundException();
+		return user;
+	}
+
+	private static User loadUser(String userId) throws SQLException {
 		try (MysqlConnection connection = Database.getConnection()) {
 			MysqlStatement stmt = connection.prepareStatement("SELECT userid, firstname, lastname, email, organizationid,"
 					+ " lastlogin, canlogin, issuperuser, emailnotifications"
@@ -256,42 +320,50 @@ public class DbUser {
 			stmt.setString("userid", userId);
 			ResultSet rs = stmt.executeQuery();
 			if (!rs.next())
-				throw new TNotFoundException();
+				return null;
 			UserInfo userInfo = new UserInfo(rs.getString("userid"), rs.getString("firstname"),
 					rs.getString("lastname"), rs.getString("email"), rs.getString("organizationid"));
 			LocalUser local = new LocalUser(rs.getLong("lastlogin"), rs.getBoolean("canlogin"),
 					rs.getBoolean("issuperuser"), rs.getBoolean("emailnotifications"));
-			User user = new User(userInfo, local);
-			synchronized (DbUser.class) {
-				userCache.put(userInfo.userId, user);
-			}
-			return user;
+			return new User(userInfo, local);
 		} catch (SQLException e) {
-			LOGGER.error("Query failed in DbUser.getCached()", e);
+			LOGGER.error("Query failed in DbUser.loadUser()", e);
 			throw e;
 		}
 	}
 
 	/**
-	 * @return list of users who didn't log in for at least 180 days
+	 * Pass all users that haven't logged in for 180 days to the handler, in
+	 * batches of {@link Paginator#BATCH_SIZE}. Superusers and users who are not
+	 * allowed to log in anyways are skipped. The connection is returned before
+	 * the handler runs, so it can delete the users it gets.
 	 */
-	public static List<UserInfo> getInactive() throws SQLException {
+	public static void forEachInactive(Consumer<List<UserInfo>> handler) throws SQLException {
 		long cutoff = Util.unixTime() - TimeUnit.DAYS.toSeconds(180);
-		try (MysqlConnection connection = Database.getConnection()) {
-			MysqlStatement stmt = connection.prepareStatement("SELECT userid, firstname, lastname, email, organizationid"
-					+ " FROM user WHERE lastlogin < :cutoff AND canlogin <> 0 AND issuperuser = 0");
-			stmt.setLong("cutoff", cutoff);
-			ResultSet rs = stmt.executeQuery();
-			List<UserInfo> list = new ArrayList<>();
-			while (rs.next()) {
-				list.add(new UserInfo(rs.getString("userid"), rs.getString("firstname"),
-						rs.getString("lastname"), rs.getString("email"), rs.getString("organizationid")));
+		String after = "";
+		List<UserInfo> batch;
+		do {
+			batch = new ArrayList<>();
+			try (MysqlConnection connection = Database.getConnection()) {
+				MysqlStatement stmt = connection.prepareStatement("SELECT userid, firstname, lastname, email, organizationid"
+						+ " FROM user WHERE lastlogin < :cutoff AND canlogin <> 0 AND issuperuser = 0"
+						+ " AND userid > :after ORDER BY userid ASC LIMIT " + Paginator.BATCH_SIZE);
+				stmt.setLong("cutoff", cutoff);
+				stmt.setString("after", after);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					batch.add(new UserInfo(rs.getString("userid"), rs.getString("firstname"),
+							rs.getString("lastname"), rs.getString("email"), rs.getString("organizationid")));
+				}
+			} catch (SQLException e) {
+				LOGGER.error("Query failed in forEachInactive()", e);
+				throw e;
 			}
-			return list;
-		} catch (SQLException e) {
-			LOGGER.error("Query failed in getInactive()", e);
-			throw e;
-		}
+			if (batch.isEmpty())
+				break;
+			after = batch.get(batch.size() - 1).userId;
+			handler.accept(batch);
+		} while (batch.size() == Paginator.BATCH_SIZE);
 	}
 
 	/**
@@ -315,6 +387,8 @@ public class DbUser {
 		} catch (SQLException e) {
 			LOGGER.error("Query failed in deleteUser()", e);
 			throw e;
+		} finally {
+			userCache.invalidate(user.userId);
 		}
 	}
 
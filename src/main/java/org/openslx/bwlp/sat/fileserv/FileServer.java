@@ -17,6 +17,7 @@ import javax.net.ssl.SSLContext;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.RuntimeConfig;
 import org.openslx.bwlp.sat.database.mappers.DbImage;
 import org.openslx.bwlp.sat.database.models.LocalImageVersion;
 import org.openslx.bwlp.sat.util.Constants;
@@ -67,6 +68,14 @@ public class FileServer implements IncomingEvent {
 		LOGGER.info("Max allowed concurrent uploads from clients: " + Constants.MAX_UPLOADS);
 		LOGGER.info("Max allowed concurrent downloads from clients: " + Constants.MAX_DOWNLOADS);
 		LOGGER.info("Max allowed connections per transfer: " + Constants.MAX_CONNECTIONS_PER_TRANSFER);
+		RuntimeConfig.addListener(new RuntimeConfig.Listener() {
+			@Override
+			public void configChanged(RuntimeConfig.Snapshot config) {
+				for (IncomingDataTransfer upload : uploads.values()) {
+					upload.setSscMode(config.getServerSideCopy());
+				}
+			}
+		});
 	}
 
 	public static FileServer instance() {
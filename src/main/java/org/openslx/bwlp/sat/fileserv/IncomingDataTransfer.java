@@ -128,12 +128,7 @@ public class IncomingDataTransfer extends IncomingTransferBase {
 	}
 
 	private void initCommonUpload() {
-		SscMode sscMode = RuntimeConfig.get().serverSideCopy;
-		if (sscMode == SscMode.OFF) {
-			super.enableServerSideCopying(false);
-		} else if (sscMode == SscMode.ON) {
-			super.enableServerSideCopying(true);
-		}
+		setSscMode(RuntimeConfig.getServerSideCopy());
 		// Handle repair upload...
 		if (!isRepairUpload())
 			return;
@@ -396,10 +391,7 @@ public class IncomingDataTransfer extends IncomingTransferBase {
 			// Repair uploads write to the database while making progress
 			ChunkStatus status = chunk.getStatus();
 			if (status == ChunkStatus.MISSING || status == ChunkStatus.COMPLETE) {
-				try {
-					DbImageBlock.asyncUpdate(getVersionId(), chunk);
-				} catch (InterruptedException e) {
-				}
+				DbImageBlock.asyncUpdate(getVersionId(), chunk);
 			}
 		}
 	}
@@ -410,9 +402,26 @@ public class IncomingDataTransfer extends IncomingTransferBase {
 	private static final long SSC_ENABLE_THRES = 10l * 1024 * 1024;
 	private static final long SSC_DISABLE_THRES = 20l * 1024 * 1024;
 
+	/**
+	 * Server side copy mode of the satellite, kept up to date by
+	 * {@link FileServer} when the configuration changes.
+	 */
+	private volatile SscMode sscMode;
+
+	void setSscMode(SscMode mode) {
+		if (mode == sscMode)
+			return;
+		sscMode = mode;
+		speedTimestamp = 0;
+		if (mode == SscMode.OFF) {
+			super.enableServerSideCopying(false);
+		} else if (mode == SscMode.ON) {
+			super.enableServerSideCopying(true);
+		}
+	}
+
 	@Override
 	protected boolean chunkReceived(FileChunk chunk, byte[] data) {
-		SscMode sscMode = RuntimeConfig.get().serverSideCopy;
 		if (sscMode == SscMode.AUTO) {
 			// Automatic SSC setting
 			long diff = 0;
@@ -433,14 +442,6 @@ public class IncomingDataTransfer extends IncomingTransferBase {
 					super.enableServerSideCopying(false);
 				}
 			}
-			
-		} else {
-			speedTimestamp = 0;
-			if (sscMode == SscMode.OFF) {
-				super.enableServerSideCopying(false);
-			} else if (sscMode == SscMode.ON) {
-				super.enableServerSideCopying(true);
-			}
 		}
 		// Hashing
 		if (getHashChecker() == null)
@@ -462,7 +463,7 @@ public class IncomingDataTransfer extends IncomingTransferBase {
 	 * Alter options of this upload. Returns new effective options.
 	 */
 	public UploadOptions setOptions(UploadOptions options) {
-		if (RuntimeConfig.get().serverSideCopy == SscMode.USER) {
+		if (sscMode == SscMode.USER) {
 			// User can fiddle around
 			if (options != null) {
 				if (options.isSetServerSideCopying()) {
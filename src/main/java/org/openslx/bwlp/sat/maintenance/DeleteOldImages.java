@@ -1,10 +1,12 @@
 package org.openslx.bwlp.sat.maintenance;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -77,76 +79,117 @@ public class DeleteOldImages implements Runnable {
 			return;
 		}
 		LOGGER.info("Looking for old image versions to delete");
-		Set<LocalImageVersion> versions = new HashSet<>();
-		// First get a list of all image versions which reached their expire date,
+		final Set<String> keepList = resetList;
+		final int[] counts = new int[2]; // soft, hard
+		final boolean[] failed = new boolean[1];
+		final long scanStart = Util.unixTime();
+		// First handle all image versions which reached their expire date,
 		// no matter if valid or invalid
 		try {
-			List<LocalImageVersion> list = DbImage.getExpiringLocalImageVersions(0);
-			versions.addAll(list);
+			DbImage.forEachExpiringLocalImageVersion(0, new Consumer<List<LocalImageVersion>>() {
+				@Override
+				public void accept(List<LocalImageVersion> batch) {
+					if (!failed[0] && !expire(batch, keepList, counts)) {
+						failed[0] = true;
+					}
+				}
+			});
 		} catch (SQLException e) {
 			LOGGER.error("Will not be able to clean up old image versions");
 		}
+		if (failed[0])
+			return;
 		try {
-			List<LocalImageVersion> list = DbImage.getVersionsWithMissingData();
-			versions.addAll(list);
+			List<LocalImageVersion> batch = new ArrayList<>();
+			for (LocalImageVersion version : DbImage.getVersionsWithMissingData()) {
+				// Expired ones were handled above already
+				if (version.expireTime >= scanStart) {
+					batch.add(version);
+				}
+			}
+			if (!expire(batch, resetList, counts))
+				return;
 		} catch (SQLException e) {
 			LOGGER.error("Will not be able to clean up invalid image versions");
 		}
+		// Delete base images with no image versions (including invalid ones)
+		int baseDeleteCount = 0;
+		try {
+			baseDeleteCount = DbImage.deleteOrphanedBases();
+		} catch (SQLException e) {
+			// Logging done in method
+		}
+		LOGGER.info("Deletion done. Soft: " + counts[0] + ", hard: " + counts[1] + ", base: "
+				+ baseDeleteCount);
+		// Aftermath: We might have a list of image versions that have been un-marked from deletion,
+		// and weren't re-marked in this run. This means there might have been clock skew or other problems.
+		// So let's check those images' files, and if they're ok, we also set the 'isvalid' flag again
+	}
+
+	/**
+	 * Mark the given versions as invalid, and flag those that expired at least
+	 * one day ago for deletion.
+	 * 
+	 * @param resetList versions that were marked for deletion before this run;
+	 *            the given versions will be removed from it
+	 * @param counts number of soft and hard deleted versions, will be increased
+	 * @return false if the versions could not be marked as invalid
+	 */
+	private static boolean expire(List<LocalImageVersion> versions, Set<String> resetList, int[] counts) {
+		if (versions.isEmpty())
+			return true;
 		// Mark all as invalid. This will also trigger mails if they have been valid before
 		try {
 			DbImage.markValid(false, false, versions.toArray(new LocalImageVersion[versions.size()]));
 		} catch (SQLException e) {
 			LOGGER.error("Could not mark images to be deleted as invalid. Cleanup of old images failed.");
-			return;
+			return false;
 		}
-		int hardDeleteCount = 0;
 		final long hardDelete = Util.unixTime() - 86400;
 		for (LocalImageVersion version : versions) {
 			if (version.expireTime < hardDelete) {
 				// Delete them permanently only if they expired (at least) one day ago
-				hardDeleteCount++;
+				counts[1]++;
 				try {
 					DbImage.setDeletion(DeleteState.SHOULD_DELETE, version.imageVersionId);
 				} catch (SQLException e) {
 				}
+			} else {
+				counts[0]++;
 			}
 			// Remove all versions from our reset list that were just disabled again, so we keep those
 			// that have potentially been falsely disabled before
 			resetList.remove(version.imageVersionId);
 		}
-		// Delete base images with no image versions (including invalid ones)
-		int baseDeleteCount = 0;
-		try {
-			baseDeleteCount = DbImage.deleteOrphanedBases();
-		} catch (SQLException e) {
-			// Logging done in method
-		}
-		LOGGER.info("Deletion done. Soft: " + (versions.size() - hardDeleteCount) + ", hard: "
-				+ hardDeleteCount + ", base: " + baseDeleteCount);
-		// Aftermath: We might have a list of image versions that have been un-marked from deletion,
-		// and weren't re-marked in this run. This means there might have been clock skew or other problems.
-		// So let's check those images' files, and if they're ok, we also set the 'isvalid' flag again
+		return true;
 	}
 
 	public static StringBuilder hardDeleteImages() {
-		StringBuilder sb = new StringBuilder();
-		List<LocalImageVersion> deletables;
+		final StringBuilder sb = new StringBuilder();
+		final int[] processed = new int[1];
 		try {
-			deletables = DbImage.getLocalWithState(DeleteState.WANT_DELETE);
+			DbImage.forEachLocalWithState(DeleteState.WANT_DELETE, new Consumer<List<LocalImageVersion>>() {
+				@Override
+				public void accept(List<LocalImageVersion> deletables) {
+					for (LocalImageVersion version : deletables) {
+						processed[0]++;
+						FileSystem.deleteImageRelatedFiles(version);
+						try {
+							DbImage.deleteVersionPermanently(version);
+						} catch (SQLException e) {
+							writeln(sb, version.imageVersionId, ": Cannot delete image: ", e.getMessage());
+						}
+						writeln(sb, version.imageVersionId, ": OK");
+						DbLog.log((String)null, version.imageBaseId,
+								"Version " + version.imageVersionId + " (" + Formatter.date(version.createTime)
+										+ ") deleted from database and storage.");
+					}
+				}
+			});
 		} catch (SQLException e2) {
-			return null;
-		}
-		for (LocalImageVersion version : deletables) {
-			FileSystem.deleteImageRelatedFiles(version);
-			try {
-				DbImage.deleteVersionPermanently(version);
-			} catch (SQLException e) {
-				writeln(sb, version.imageVersionId, ": Cannot delete image: ", e.getMessage());
-			}
-			writeln(sb, version.imageVersionId, ": OK");
-			DbLog.log((String)null, version.imageBaseId,
-					"Version " + version.imageVersionId + " (" + Formatter.date(version.createTime)
-							+ ") deleted from database and storage.");
+			if (processed[0] == 0)
+				return null;
+			writeln(sb, "Cannot get further images to delete: ", e2.getMessage());
 		}
 		writeln(sb, "Done");
 		return sb;
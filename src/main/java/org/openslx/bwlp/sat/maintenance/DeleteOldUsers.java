@@ -3,6 +3,7 @@ package org.openslx.bwlp.sat.maintenance;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -57,21 +58,23 @@ public class DeleteOldUsers implements Runnable {
 
 	@Override
 	public void run() {
-		List<UserInfo> inactiveUsers;
 		try {
-			inactiveUsers = DbUser.getInactive();
+			DbUser.forEachInactive(new Consumer<List<UserInfo>>() {
+				@Override
+				public void accept(List<UserInfo> inactiveUsers) {
+					for (UserInfo user : inactiveUsers) {
+						try {
+							if (DbUser.deleteUser(user)) {
+								DbLog.log((String)null, null, "Deleted inactive user " + Formatter.userFullName(user));
+							}
+						} catch (SQLException e) {
+							// Already logged
+						}
+					}
+				}
+			});
 		} catch (SQLException e) {
 			LOGGER.warn("Cannot get list of old users for deletion");
-			return;
-		}
-		for (UserInfo user : inactiveUsers) {
-			try {
-				if (DbUser.deleteUser(user)) {
-					DbLog.log((String)null, null, "Deleted inactive user " + Formatter.userFullName(user));
-				}
-			} catch (SQLException e) {
-				// Already logged
-			}
 		}
 	}
 
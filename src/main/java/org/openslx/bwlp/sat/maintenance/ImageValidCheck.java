@@ -340,12 +340,8 @@ public class ImageValidCheck implements Runnable {
 									// >:(
 									((StandaloneFileChunk) chunk).overrideStatus(ChunkStatus.COMPLETE);
 								}
-								try {
-									// We don't know what the state was in DB before, so just fire updates
-									DbImageBlock.asyncUpdate(imageVersion.imageVersionId, chunk);
-								} catch (InterruptedException e) {
-									Thread.currentThread().interrupt();
-								}
+								// We don't know what the state was in DB before, so just fire updates
+								DbImageBlock.asyncUpdate(imageVersion.imageVersionId, chunk);
 							}
 						} finally {
 							sem.release();
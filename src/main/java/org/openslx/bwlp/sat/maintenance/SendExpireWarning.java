@@ -3,6 +3,7 @@ package org.openslx.bwlp.sat.maintenance;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -85,26 +86,28 @@ public class SendExpireWarning implements Runnable {
 			LOGGER.warn("Skipping sending warning mails about expiring images - storage seems unmounted");
 			return;
 		}
-		// Get all images that expire in 15 days or less
-		List<LocalImageVersion> versions;
-		try {
-			versions = DbImage.getExpiringLocalImageVersions(15);
-		} catch (SQLException e) {
-			LOGGER.warn("Could not determine expiring versions; skipping warning mails");
-			return;
-		}
 		LOGGER.info("Scanning for expiring images to send mails to users");
-		// Send reminder on certain days
+		// Go through all images that expire in 15 days or less
 		final long now = Util.unixTime();
-		for (LocalImageVersion version : versions) {
-			final int days = (int) ((version.expireTime - now) / 86400);
-			boolean mailNormal = (version.isValid && (days == 14 || days == 7 || days == 1))
-					|| (!version.isValid && days == 3);
-			boolean mailForced = version.isValid && days == 1;
-			if (mailNormal || mailForced) {
-				LOGGER.debug(version.imageVersionId + " expires in " + days);
-				MailGenerator.sendImageDeletionReminder(version, days, mailForced);
-			}
+		try {
+			DbImage.forEachExpiringLocalImageVersion(15, new Consumer<List<LocalImageVersion>>() {
+				@Override
+				public void accept(List<LocalImageVersion> versions) {
+					// Send reminder on certain days
+					for (LocalImageVersion version : versions) {
+						final int days = (int) ((version.expireTime - now) / 86400);
+						boolean mailNormal = (version.isValid && (days == 14 || days == 7 || days == 1))
+								|| (!version.isValid && days == 3);
+						boolean mailForced = version.isValid && days == 1;
+						if (mailNormal || mailForced) {
+							LOGGER.debug(version.imageVersionId + " expires in " + days);
+							MailGenerator.sendImageDeletionReminder(version, days, mailForced);
+						}
+					}
+				}
+			});
+		} catch (SQLException e) {
+			LOGGER.warn("Could not determine expiring versions; skipping remaining warning mails");
 		}
 	}
 }
@@ -0,0 +1,177 @@
+package org.openslx.bwlp.sat.permissions;
+
+import java.sql.SQLException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openslx.bwlp.sat.database.UnitOfWork;
+import org.openslx.bwlp.sat.database.mappers.DbPermissions;
+import org.openslx.bwlp.sat.database.mappers.DbPermissions.ImageAccess;
+import org.openslx.bwlp.sat.database.mappers.DbPermissions.LectureAccess;
+import org.openslx.bwlp.thrift.iface.ImagePermissions;
+import org.openslx.bwlp.thrift.iface.LecturePermissions;
+import org.openslx.bwlp.thrift.iface.TNotFoundException;
+import org.openslx.bwlp.thrift.iface.UserInfo;
+
+/**
+ * Resolves the effective permissions of a user for an image or lecture, and
+ * caches them per (user, object). The mappers invalidate the cache whenever
+ * permissions, default permissions or the owner of an object change. The
+ * returned objects are shared and must not be modified.
+ */
+public class PermissionResolver {
+
+	/**
+	 * Safety net for changes we don't get notified about, like a user becoming
+	 * super user.
+	 */
+	private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(1);
+
+	private static final int MAX_ENTRIES = 20000;
+
+	private static final PermissionCache<ImagePermissions> imageCache = new PermissionCache<>();
+
+	private static final PermissionCache<LecturePermissions> lectureCache = new PermissionCache<>();
+
+	public static ImagePermissions getImagePermissions(UserInfo user, String imageBaseId)
+			throws SQLException, TNotFoundException {
+		String userKey = userKey(user);
+		ImagePermissions perms = imageCache.get(imageBaseId, userKey);
+		if (perms != null)
+			return perms;
+		long generation = imageCache.generation.get();
+		ImageAccess access;
+		// Don't cache what an old snapshot of the current unit of work shows
+		try (UnitOfWork.Suspension s = UnitOfWork.suspend()) {
+			access = DbPermissions.getImageAccess(user.userId, imageBaseId);
+		}
+		if (User.hasAllImagePermissions(user, access.ownerId)) {
+			perms = User.imageSu;
+		} else {
+			perms = User.calculateUserImagePermissions(user, access.userPermissions,
+					access.defaultPermissions);
+		}
+		imageCache.put(imageBaseId, userKey, perms, generation);
+		return perms;
+	}
+
+	public static LecturePermissions getLecturePermissions(UserInfo user, String lectureId)
+			throws SQLException, TNotFoundException {
+		if (User.isStudent(user))
+			return User.lectureNothing;
+		String userKey = userKey(user);
+		LecturePermissions perms = lectureCache.get(lectureId, userKey);
+		if (perms != null)
+			return perms;
+		long generation = lectureCache.generation.get();
+		LectureAccess access;
+		try (UnitOfWork.Suspension s = UnitOfWork.suspend()) {
+			access = DbPermissions.getLectureAccess(user.userId, lectureId);
+		}
+		if (User.hasAllLecturePermissions(user, access.ownerId)) {
+			perms = User.lectureSu;
+		} else {
+			perms = User.calculateUserLecturePermissions(access.userPermissions, access.defaultPermissions);
+		}
+		lectureCache.put(lectureId, userKey, perms, generation);
+		return perms;
+	}
+
+	/**
+	 * Permissions, default permissions or owner of the given image changed.
+	 */
+	public static void invalidateImage(String imageBaseId) {
+		imageCache.invalidate(imageBaseId);
+	}
+
+	/**
+	 * Permissions, default permissions or owner of the given lecture changed.
+	 */
+	public static void invalidateLecture(String lectureId) {
+		lectureCache.invalidate(lectureId);
+	}
+
+	/**
+	 * The role is part of the key, as it changes the outcome.
+	 */
+	private static String userKey(UserInfo user) {
+		return user.userId + "/" + user.role;
+	}
+
+	private static class Entry<T> {
+		private final T perms;
+		private final long loaded;
+
+		private Entry(T perms, long loaded) {
+			this.perms = perms;
+			this.loaded = loaded;
+		}
+	}
+
+	private static class PermissionCache<T> {
+		/**
+		 * Object id -> user -> permissions
+		 */
+		private final ConcurrentHashMap<String, ConcurrentHashMap<String, Entry<T>>> map = new ConcurrentHashMap<>();
+
+		/**
+		 * Incremented on every invalidation, so a lookup that raced with a
+		 * change doesn't cache outdated permissions.
+		 */
+		private final AtomicLong generation = new AtomicLong();
+
+		/**
+		 * Number of entries in all per-object maps. Only approximate when
+		 * puts race with invalidations, which is good enough for bounding
+		 * the size.
+		 */
+		private final AtomicInteger size = new AtomicInteger();
+
+		private T get(String objectId, String userKey) {
+			ConcurrentHashMap<String, Entry<T>> users = map.get(objectId);
+			if (users == null)
+				return null;
+			Entry<T> e = users.get(userKey);
+			if (e == null || System.currentTimeMillis() - e.loaded >= MAX_AGE)
+				return null;
+			return e.perms;
+		}
+
+		private void put(String objectId, String userKey, T perms, long gen) {
+			if (generation.get() != gen)
+				return;
+			if (size.get() >= MAX_ENTRIES) {
+				// Rarely happens, not worth an LRU
+				size.set(0);
+				map.clear();
+			}
+			ConcurrentHashMap<String, Entry<T>> users = map.get(objectId);
+			if (users == null) {
+				users = new ConcurrentHashMap<>();
+				ConcurrentHashMap<String, Entry<T>> existing = map.putIfAbsent(objectId, users);
+				if (existing != null) {
+					users = existing;
+				}
+			}
+			Entry<T> entry = new Entry<>(perms, System.currentTimeMillis());
+			if (users.put(userKey, entry) == null) {
+				// Only new entries count, not ones replacing an expired entry
+				size.incrementAndGet();
+			}
+			if (generation.get() != gen && users.remove(userKey, entry)) {
+				size.decrementAndGet();
+			}
+		}
+
+		private void invalidate(String objectId) {
+			generation.incrementAndGet();
+			ConcurrentHashMap<String, Entry<T>> users = map.remove(objectId);
+			if (users != null) {
+				size.addAndGet(-users.size());
+			}
+		}
+	}
+
+}
@@ -4,8 +4,9 @@ import java.sql.SQLException;
 
 import org.openslx.bwlp.sat.RuntimeConfig;
 import org.openslx.bwlp.sat.database.mappers.DbImage;
-import org.openslx.bwlp.sat.database.mappers.DbLecture;
 import org.openslx.bwlp.sat.database.mappers.DbOrganization;
+import org.openslx.bwlp.sat.database.mappers.DbPermissions;
+import org.openslx.bwlp.sat.database.mappers.DbPermissions.VersionAccess;
 import org.openslx.bwlp.sat.database.models.LocalOrganization;
 import org.openslx.bwlp.sat.database.models.LocalUser;
 import org.openslx.bwlp.sat.thrift.cache.OrganizationList;
@@ -14,7 +15,6 @@ import org.openslx.bwlp.thrift.iface.AuthorizationError;
 import org.openslx.bwlp.thrift.iface.ImageDetailsRead;
 import org.openslx.bwlp.thrift.iface.ImagePermissions;
 import org.openslx.bwlp.thrift.iface.ImageSummaryRead;
-import org.openslx.bwlp.thrift.iface.ImageVersionDetails;
 import org.openslx.bwlp.thrift.iface.LecturePermissions;
 import org.openslx.bwlp.thrift.iface.LectureRead;
 import org.openslx.bwlp.thrift.iface.LectureSummary;
@@ -27,11 +27,11 @@ import org.openslx.bwlp.thrift.iface.UserInfo;
 
 public class User {
 
-	private static final ImagePermissions imageSu = new ImagePermissions(true, true, true, true);
+	static final ImagePermissions imageSu = new ImagePermissions(true, true, true, true);
 
-	private static final LecturePermissions lectureSu = new LecturePermissions(true, true);
+	static final LecturePermissions lectureSu = new LecturePermissions(true, true);
 
-	private static final LecturePermissions lectureNothing = new LecturePermissions(false, false);
+	static final LecturePermissions lectureNothing = new LecturePermissions(false, false);
 
 	public static boolean isTutor(UserInfo user) {
 		return user != null && user.role == Role.TUTOR;
@@ -115,8 +115,7 @@ public class User {
 	 */
 	public static void canEditBaseImageOrFail(UserInfo user, String imageBaseId) throws TInvocationException,
 			TNotFoundException, TAuthorizationException {
-		ImageSummaryRead image = getImageFromBaseId(user, imageBaseId);
-		if (!image.userPermissions.edit) {
+		if (!getImagePermissions(user, imageBaseId).edit) {
 			throw new TAuthorizationException(AuthorizationError.NO_PERMISSION,
 					"No permission to edit this image");
 		}
@@ -155,29 +154,20 @@ public class User {
 	 */
 	public static void canDeleteImageVersionOrFail(UserInfo user, String imageVersionId)
 			throws TInvocationException, TNotFoundException, TAuthorizationException {
-		ImageDetailsRead imageDetails;
-		try {
-			imageDetails = DbImage.getImageDetails(user, DbImage.getBaseIdForVersionId(imageVersionId));
-		} catch (SQLException e) {
-			throw new TInvocationException();
-		}
+		VersionAccess version = getVersionAccess(imageVersionId);
 		// Do not allow deleting remote images if share mode is set to "auto download" and
 		// the version to delete is the latest
-		if (imageDetails.shareMode == ShareMode.DOWNLOAD
-				&& imageDetails.latestVersionId.equals(imageVersionId)) {
+		if (version.shareMode == ShareMode.DOWNLOAD && imageVersionId.equals(version.latestVersionId)) {
 			throw new TAuthorizationException(AuthorizationError.NO_PERMISSION,
 					"Cannot delete latest version of image if auto-download is enabled");
 		}
 		// Check user permissions
-		if (imageDetails.userPermissions.admin)
+		ImagePermissions perms = getImagePermissions(user, version.imageBaseId);
+		if (perms.admin)
 			return;
 		// User uploaded the image version in question and has edit permissions - allow
-		if (imageDetails.userPermissions.edit) {
-			for (ImageVersionDetails version : imageDetails.versions) {
-				if (version.versionId.equals(imageVersionId) && version.uploaderId.equals(user.userId))
-					return;
-			}
-		}
+		if (perms.edit && user.userId.equals(version.uploaderId))
+			return;
 		throw new TAuthorizationException(AuthorizationError.NO_PERMISSION,
 				"No permission to delete this image version");
 	}
@@ -192,23 +182,24 @@ public class User {
 
 	public static void canDownloadImageVersionOrFail(UserInfo user, String imageBaseId, String imageVersionId)
 			throws TAuthorizationException, TNotFoundException, TInvocationException {
-		ImageDetailsRead image;
-		try {
-			if (imageBaseId == null) {
-				imageBaseId = DbImage.getBaseIdForVersionId(imageVersionId);
-			}
-			image = DbImage.getImageDetails(user, imageBaseId);
-		} catch (SQLException e) {
-			throw new TInvocationException();
+		VersionAccess version = null;
+		if (imageBaseId == null) {
+			version = getVersionAccess(imageVersionId);
+			imageBaseId = version.imageBaseId;
 		}
-		if (image.userPermissions.download) {
+		if (getImagePermissions(user, imageBaseId).download) {
 			if (isTutor(user))
 				return;
 			// User is unknown role or student, check version's restricted flag
-			for (ImageVersionDetails version : image.versions) {
-				if (!version.isRestricted && version.versionId.equals(imageVersionId))
-					return;
+			if (version == null) {
+				try {
+					version = getVersionAccess(imageVersionId);
+				} catch (TNotFoundException e) {
+					version = null;
+				}
 			}
+			if (version != null && !version.isRestricted && imageBaseId.equals(version.imageBaseId))
+				return;
 		}
 		throw new TAuthorizationException(AuthorizationError.NO_PERMISSION,
 				"No permission to download this image version");
@@ -238,8 +229,7 @@ public class User {
 	 */
 	public static boolean canEditImagePermissions(UserInfo user, String imageBaseId)
 			throws TInvocationException, TNotFoundException {
-		ImageSummaryRead image = getImageFromBaseId(user, imageBaseId);
-		return image.userPermissions.admin;
+		return getImagePermissions(user, imageBaseId).admin;
 	}
 
 	/**
@@ -263,8 +253,7 @@ public class User {
 			throws TAuthorizationException, TInvocationException, TNotFoundException {
 		// TODO: Who should be allowed to change the owner? Any admin, or just the owner?
 		// Currently it's every admin, but this is open for discussion
-		ImageSummaryRead image = getImageFromBaseId(user, imageBaseId);
-		if (!image.userPermissions.admin) {
+		if (!getImagePermissions(user, imageBaseId).admin) {
 			throw new TAuthorizationException(AuthorizationError.NO_PERMISSION,
 					"No permission to change image owner");
 		}
@@ -272,7 +261,10 @@ public class User {
 
 	public static void canEditLectureOrFail(UserInfo user, String lectureId) throws TInvocationException,
 			TNotFoundException, TAuthorizationException {
-		canEditLectureOrFail(user, getLectureFromId(user, lectureId));
+		if (!getLecturePermissions(user, lectureId).edit) {
+			throw new TAuthorizationException(AuthorizationError.NO_PERMISSION,
+					"No permission to edit this image");
+		}
 	}
 
 	public static void canEditLectureOrFail(UserInfo user, LectureSummary lecture)
@@ -285,8 +277,7 @@ public class User {
 
 	public static boolean canEditLecturePermissions(UserInfo user, String lectureId)
 			throws TNotFoundException, TInvocationException {
-		LectureSummary lecture = getLectureFromId(user, lectureId);
-		return lecture.userPermissions.admin;
+		return getLecturePermissions(user, lectureId).admin;
 	}
 
 	public static void canEditLecturePermissionsOrFail(UserInfo user, String lectureId)
@@ -311,8 +302,7 @@ public class User {
 			TInvocationException, TAuthorizationException {
 		if (imageVersionId == null)
 			return;
-		ImageSummaryRead image = getImageFromVersionId(user, imageVersionId);
-		if (!image.userPermissions.link) {
+		if (!getImagePermissions(user, getVersionAccess(imageVersionId).imageBaseId).link) {
 			throw new TAuthorizationException(AuthorizationError.NO_PERMISSION,
 					"No permission to link to this image");
 		}
@@ -342,8 +332,7 @@ public class User {
 
 	public static void canDeleteLectureOrFail(UserInfo user, String lectureId)
 			throws TAuthorizationException, TInvocationException, TNotFoundException {
-		LectureSummary lecture = getLectureFromId(user, lectureId);
-		if (!lecture.userPermissions.admin) {
+		if (!getLecturePermissions(user, lectureId).admin) {
 			throw new TAuthorizationException(AuthorizationError.NO_PERMISSION,
 					"No permission to delete this lecture");
 		}
@@ -367,17 +356,22 @@ public class User {
 	public static void canTriggerReplicationOrFail(UserInfo user, String imageVersionId)
 			throws TAuthorizationException, TInvocationException {
 		if (isTutor(user)) {
-			ImageSummaryRead image;
+			VersionAccess version;
 			try {
-				image = getImageFromVersionId(user, imageVersionId);
+				version = getVersionAccess(imageVersionId);
 			} catch (TNotFoundException e) {
 				// If the image is not known locally, allow replication
 				return;
 			}
 			// If it's a remote image, or if the user has edit permissions, allow
-			if (image.shareMode == ShareMode.DOWNLOAD || image.shareMode == ShareMode.FROZEN
-					|| image.userPermissions.edit)
+			if (version.shareMode == ShareMode.DOWNLOAD || version.shareMode == ShareMode.FROZEN)
+				return;
+			try {
+				if (getImagePermissions(user, version.imageBaseId).edit)
+					return;
+			} catch (TNotFoundException e) {
 				return;
+			}
 			throw new TAuthorizationException(AuthorizationError.NO_PERMISSION,
 					"You cannot trigger downloading an image to the satellite server that is not in replication mode");
 		}
@@ -412,10 +406,8 @@ public class User {
 			lecture.userPermissions = lectureSu;
 			return;
 		}
-		if (lecture.userPermissions == null) {
-			lecture.userPermissions = lecture.defaultPermissions;
-		}
-		lecture.userPermissions = Sanitizer.handleLecturePermissions(lecture.userPermissions);
+		lecture.userPermissions = calculateUserLecturePermissions(lecture.userPermissions,
+				lecture.defaultPermissions);
 	}
 
 	public static void setCombinedUserPermissions(LectureSummary lecture, UserInfo user) {
@@ -427,13 +419,11 @@ public class User {
 			lecture.userPermissions = lectureSu;
 			return;
 		}
-		if (lecture.userPermissions == null) {
-			lecture.userPermissions = lecture.defaultPermissions;
-		}
-		lecture.userPermissions = Sanitizer.handleLecturePermissions(lecture.userPermissions);
+		lecture.userPermissions = calculateUserLecturePermissions(lecture.userPermissions,
+				lecture.defaultPermissions);
 	}
 
-	private static boolean hasAllImagePermissions(UserInfo user, String imageOwnerId) {
+	static boolean hasAllImagePermissions(UserInfo user, String imageOwnerId) {
 		if (user != null && user.role == Role.TUTOR) {
 			// Check for owner
 			if (user.userId.equals(imageOwnerId)) {
@@ -448,7 +438,7 @@ public class User {
 		return false;
 	}
 
-	private static ImagePermissions calculateUserImagePermissions(UserInfo user, ImagePermissions userPerms,
+	static ImagePermissions calculateUserImagePermissions(UserInfo user, ImagePermissions userPerms,
 			ImagePermissions defPerms) {
 		// Standard combining logic
 		if (userPerms == null)
@@ -469,7 +459,14 @@ public class User {
 		return userPerms;
 	}
 
-	private static boolean hasAllLecturePermissions(UserInfo user, String lectureOwnerId) {
+	static LecturePermissions calculateUserLecturePermissions(LecturePermissions userPerms,
+			LecturePermissions defPerms) {
+		if (userPerms == null)
+			userPerms = defPerms;
+		return Sanitizer.handleLecturePermissions(userPerms);
+	}
+
+	static boolean hasAllLecturePermissions(UserInfo user, String lectureOwnerId) {
 		if (user != null && user.role == Role.TUTOR) {
 			// Check for owner
 			if (user.userId.equals(lectureOwnerId)) {
@@ -484,28 +481,28 @@ public class User {
 		return false;
 	}
 
-	private static ImageSummaryRead getImageFromBaseId(UserInfo user, String imageBaseId)
+	private static ImagePermissions getImagePermissions(UserInfo user, String imageBaseId)
 			throws TNotFoundException, TInvocationException {
 		try {
-			return DbImage.getImageSummary(user, imageBaseId);
+			return PermissionResolver.getImagePermissions(user, imageBaseId);
 		} catch (SQLException e) {
 			throw new TInvocationException();
 		}
 	}
 
-	private static ImageSummaryRead getImageFromVersionId(UserInfo user, String imageVersionId)
-			throws TNotFoundException, TInvocationException {
+	private static VersionAccess getVersionAccess(String imageVersionId) throws TNotFoundException,
+			TInvocationException {
 		try {
-			return DbImage.getImageSummary(user, DbImage.getBaseIdForVersionId(imageVersionId));
+			return DbPermissions.getVersionAccess(imageVersionId);
 		} catch (SQLException e) {
 			throw new TInvocationException();
 		}
 	}
 
-	private static LectureSummary getLectureFromId(UserInfo user, String lectureId)
+	private static LecturePermissions getLecturePermissions(UserInfo user, String lectureId)
 			throws TNotFoundException, TInvocationException {
 		try {
-			return DbLecture.getLectureSummary(user, lectureId);
+			return PermissionResolver.getLecturePermissions(user, lectureId);
 		} catch (SQLException e) {
 			throw new TInvocationException();
 		}
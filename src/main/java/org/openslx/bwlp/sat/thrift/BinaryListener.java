@@ -21,6 +21,7 @@ import org.apache.thrift.transport.TServerSocket;
 import org.apache.thrift.transport.TServerTransport;
 import org.apache.thrift.transport.TTransportException;
 import org.apache.thrift.transport.layered.TFastFramedTransport;
+import org.openslx.bwlp.sat.database.UnitOfWork;
 import org.openslx.bwlp.sat.util.Identity;
 import org.openslx.bwlp.thrift.iface.SatelliteServer;
 import org.openslx.thrifthelper.TBinaryProtocolSafe;
@@ -32,8 +33,8 @@ public class BinaryListener implements Runnable {
 	private static final int MINWORKERTHREADS = 2;
 	private static final int MAXWORKERTHREADS = 96;
 
-	private final SatelliteServer.Processor<ServerHandler> processor = new SatelliteServer.Processor<ServerHandler>(
-			new ServerHandler());
+	private final SatelliteServer.Processor<SatelliteServer.Iface> processor = new SatelliteServer.Processor<SatelliteServer.Iface>(
+			UnitOfWork.wrap(SatelliteServer.Iface.class, new ServerHandler()));
 	private final TProtocolFactory protFactory = new TBinaryProtocolSafe.Factory(true, true);
 
 	private final TServer server;
@@ -0,0 +1,108 @@
+package org.openslx.bwlp.sat.thrift;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.mappers.DbSession;
+import org.openslx.bwlp.thrift.iface.UserInfo;
+
+/**
+ * Keeps sessions in the database, so they survive restarts and can be shared
+ * between multiple satellite processes. Sessions are cached in memory; the
+ * new expiry time of a used session is only written back once it moved by
+ * more than {@link #PERSIST_INTERVAL}, which is also when we notice that
+ * another process removed the session.
+ */
+public class DbSessionStore extends MemorySessionStore {
+
+	private static final Logger LOGGER = LogManager.getLogger(DbSessionStore.class);
+
+	private static final long PERSIST_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+	@Override
+	public UserInfo get(String token, long now) {
+		String hash = hash(token);
+		Entry e = getEntry(token, now);
+		if (e == null) {
+			// Not cached, or expired in cache but maybe extended by another process
+			DbSession.Session session;
+			try {
+				session = DbSession.get(hash, now);
+			} catch (SQLException ex) {
+				return null;
+			}
+			if (session == null)
+				return null;
+			e = new Entry(session.user, session.validUntil);
+			e.touch(now);
+			putEntry(token, e);
+		}
+		if (e.validUntil - e.persistedUntil > PERSIST_INTERVAL) {
+			try {
+				if (!DbSession.touch(hash, e.validUntil)) {
+					// Removed by someone else
+					super.remove(token);
+					return null;
+				}
+				e.persistedUntil = e.validUntil;
+			} catch (SQLException ex) {
+				// Keep using the cached session, try again next time
+			}
+		}
+		return e.user;
+	}
+
+	@Override
+	public void put(String token, UserInfo user, long now) {
+		super.put(token, user, now);
+		try {
+			DbSession.put(hash(token), user, now + SessionManager.SESSION_TIMEOUT);
+		} catch (SQLException e) {
+			LOGGER.warn("Session for " + user.userId + " will not survive a restart");
+		}
+	}
+
+	@Override
+	public void remove(String token) {
+		super.remove(token);
+		try {
+			DbSession.delete(hash(token));
+		} catch (SQLException e) {
+			// Already logged
+		}
+	}
+
+	@Override
+	public void expire(long now) {
+		super.expire(now);
+		try {
+			int count = DbSession.deleteExpired(now);
+			if (count != 0) {
+				LOGGER.debug("Deleted " + count + " expired sessions");
+			}
+		} catch (SQLException e) {
+			// Already logged
+		}
+	}
+
+	private static String hash(String token) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+		byte[] digest = md.digest(token.getBytes(StandardCharsets.UTF_8));
+		StringBuilder sb = new StringBuilder(digest.length * 2);
+		for (byte b : digest) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+}
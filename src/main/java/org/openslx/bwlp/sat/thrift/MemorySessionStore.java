@@ -0,0 +1,83 @@
+package org.openslx.bwlp.sat.thrift;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openslx.bwlp.thrift.iface.UserInfo;
+
+/**
+ * Keeps sessions in memory only, so they're lost on restart.
+ */
+public class MemorySessionStore implements SessionStore {
+
+	protected static class Entry {
+		protected final UserInfo user;
+		protected volatile long validUntil;
+		/**
+		 * Expiry time last written to the backing store, if any.
+		 */
+		protected volatile long persistedUntil;
+
+		protected Entry(UserInfo user, long validUntil) {
+			this.user = user;
+			this.validUntil = validUntil;
+			this.persistedUntil = validUntil;
+		}
+
+		public void touch(long now) {
+			this.validUntil = now + SessionManager.SESSION_TIMEOUT;
+		}
+
+		public boolean isTooOld(long now) {
+			return validUntil < now;
+		}
+	}
+
+	private final Map<String, Entry> sessions = new ConcurrentHashMap<>();
+
+	@Override
+	public UserInfo get(String token, long now) {
+		Entry e = getEntry(token, now);
+		return e == null ? null : e.user;
+	}
+
+	/**
+	 * Get the entry for the given token and extend its lifetime.
+	 */
+	protected Entry getEntry(String token, long now) {
+		Entry e = sessions.get(token);
+		if (e == null)
+			return null;
+		if (e.isTooOld(now)) {
+			sessions.remove(token, e);
+			return null;
+		}
+		e.touch(now);
+		return e;
+	}
+
+	protected void putEntry(String token, Entry e) {
+		sessions.put(token, e);
+	}
+
+	@Override
+	public void put(String token, UserInfo user, long now) {
+		putEntry(token, new Entry(user, now + SessionManager.SESSION_TIMEOUT));
+	}
+
+	@Override
+	public void remove(String token) {
+		sessions.remove(token);
+	}
+
+	@Override
+	public void expire(long now) {
+		for (Iterator<Entry> it = sessions.values().iterator(); it.hasNext();) {
+			Entry e = it.next();
+			if (e == null || e.isTooOld(now))
+				it.remove();
+		}
+	}
+
+}
@@ -15,13 +15,9 @@ import org.openslx.bwlp.sat.database.mappers.DbImage;
 import org.openslx.bwlp.sat.database.mappers.DbImage.DeleteState;
 import org.openslx.bwlp.sat.database.mappers.DbImagePermissions;
 import org.openslx.bwlp.sat.database.mappers.DbLecture;
-import org.openslx.bwlp.sat.database.mappers.DbLectureFilter;
-import org.openslx.bwlp.sat.database.mappers.DbLectureNetshare;
-import org.openslx.bwlp.sat.database.mappers.DbLectureNetworkRules;
 import org.openslx.bwlp.sat.database.mappers.DbLecturePermissions;
-import org.openslx.bwlp.sat.database.mappers.DbLocation;
 import org.openslx.bwlp.sat.database.mappers.DbLog;
-import org.openslx.bwlp.sat.database.mappers.DbRunScript;
+import org.openslx.bwlp.sat.database.mappers.DbReferenceData;
 import org.openslx.bwlp.sat.database.mappers.DbUser;
 import org.openslx.bwlp.sat.database.models.ImageVersionMeta;
 import org.openslx.bwlp.sat.database.models.LocalImageVersion;
@@ -758,7 +754,7 @@ public class ServerHandler implements SatelliteServer.Iface {
 	@Override
 	public List<Location> getLocations() throws TException {
 		try {
-			return DbLocation.getLocations();
+			return DbReferenceData.get().locations;
 		} catch (SQLException e) {
 			throw new TInvocationException(InvocationError.INTERNAL_SERVER_ERROR,
 					"Database failure when retrieving list");
@@ -802,31 +798,18 @@ public class ServerHandler implements SatelliteServer.Iface {
 	public PredefinedData getPredefinedData(String userToken) throws TAuthorizationException,
 			TInvocationException, TException {
 		SessionManager.ensureAuthenticated(userToken); // Only logged in users
-		PredefinedData data = new PredefinedData();
-		try {
-			data.ldapFilter = DbLectureFilter.getPredefinedLdap();
-		} catch (SQLException e) {
-			throw new TInvocationException(InvocationError.INTERNAL_SERVER_ERROR,
-					"Database failure when querying predefined LDAP filters.");
-		}
-		try {
-			data.netShares = DbLectureNetshare.getPredefined();
-		} catch (SQLException e) {
-			throw new TInvocationException(InvocationError.INTERNAL_SERVER_ERROR,
-					"Database failure when querying predefined network shares.");
-		}
+		DbReferenceData.Snapshot ref;
 		try {
-			data.runScripts = DbRunScript.getPredefinedRunScripts();
+			ref = DbReferenceData.get();
 		} catch (SQLException e) {
 			throw new TInvocationException(InvocationError.INTERNAL_SERVER_ERROR,
-					"Database failure when querying predefined run scripts.");
-		}
-		try {
-			data.networkExceptions = DbLectureNetworkRules.getPredefined();
-		} catch (SQLException e) {
-			throw new TInvocationException(InvocationError.INTERNAL_SERVER_ERROR,
-					"Database failure when querying predefined network rules.");
+					"Database failure when querying predefined data.");
 		}
+		PredefinedData data = new PredefinedData();
+		data.ldapFilter = ref.ldapFilters;
+		data.netShares = ref.netShares;
+		data.runScripts = ref.runScripts;
+		data.networkExceptions = ref.networkRules;
 		return data;
 	}
 
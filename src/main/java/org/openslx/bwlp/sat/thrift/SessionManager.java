@@ -2,14 +2,17 @@ package org.openslx.bwlp.sat.thrift;
 
 import java.sql.SQLException;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openslx.bwlp.sat.database.mappers.DbUser;
 import org.openslx.bwlp.sat.permissions.User;
+import org.openslx.bwlp.sat.util.Configuration;
 import org.openslx.bwlp.sat.util.Formatter;
 import org.openslx.bwlp.thrift.iface.AuthorizationError;
 import org.openslx.bwlp.thrift.iface.Role;
@@ -29,39 +32,37 @@ public class SessionManager {
 
 	private static final Logger LOGGER = LogManager.getLogger(SessionManager.class);
 
-	private static class Entry {
-		private static final long SESSION_TIMEOUT = TimeUnit.DAYS.toMillis(1);
-		private final UserInfo user;
-		private long validUntil;
+	/**
+	 * Sessions expire if they're not used for this long.
+	 */
+	static final long SESSION_TIMEOUT = TimeUnit.DAYS.toMillis(1);
 
-		private Entry(UserInfo user) {
-			this.user = user;
-			this.validUntil = System.currentTimeMillis() + SESSION_TIMEOUT;
-		}
+	// saves the current tokens and the mapped userdata, returning from the server
+	private static final SessionStore tokenManager = "memory".equals(Configuration.getSessionStore())
+			? new MemorySessionStore()
+			: new DbSessionStore();
 
-		public void touch(long now) {
-			this.validUntil = now + SESSION_TIMEOUT;
-		}
+	/**
+	 * Lookups currently in progress, so concurrent requests with the same
+	 * unknown token only ask the master once.
+	 */
+	private static final ConcurrentHashMap<String, CompletableFuture<UserInfo>> pendingLookups = new ConcurrentHashMap<>();
 
-		public boolean isTooOld(long now) {
-			return validUntil < now;
-		}
-	}
+	/**
+	 * Tokens the master rejected recently.
+	 */
+	private static final RejectedTokens rejectedTokens = new RejectedTokens();
 
-	// saves the current tokens and the mapped userdata, returning from the server
-	private static final Map<String, Entry> tokenManager = new ConcurrentHashMap<>();
+	private static final long REJECTED_TOKEN_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+	private static final int MAX_REJECTED_TOKENS = 10000;
 
 	static {
 		// Clean cached session periodically
 		QuickTimer.scheduleAtFixedDelay(new Task() {
 			@Override
 			public void fire() {
-				final long now = System.currentTimeMillis();
-				for (Iterator<Entry> it = tokenManager.values().iterator(); it.hasNext();) {
-					Entry e = it.next();
-					if (e == null || e.isTooOld(now))
-						it.remove();
-				}
+				tokenManager.expire(System.currentTimeMillis());
 			}
 		}, 60000, 1200600);
 	}
@@ -111,19 +112,61 @@ public class SessionManager {
 	}
 
 	private static UserInfo getInternal(String token) throws TAuthorizationException, TInvocationException {
-		Entry e = tokenManager.get(token);
-		if (e == null) {
+		final long now = System.currentTimeMillis();
+		// Check this first, so garbage tokens don't cost a session store lookup
+		if (rejectedTokens.contains(token, now))
+			throw invalidToken();
+		UserInfo ui = tokenManager.get(token, now);
+		if (ui == null) {
 			LOGGER.info("Cache miss for token " + token + ", asking master");
-			return getRemote(token);
+			return getRemoteShared(token);
 		}
 		// User session already cached
-		final long now = System.currentTimeMillis();
-		if (e.isTooOld(now)) {
-			tokenManager.remove(token);
-			return getRemote(token);
+		return ui;
+	}
+
+	/**
+	 * Get {@link UserInfo} from master server. If another thread is already
+	 * asking the master about the same token, wait for its result instead.
+	 */
+	private static UserInfo getRemoteShared(String token) throws TAuthorizationException,
+			TInvocationException {
+		CompletableFuture<UserInfo> future = new CompletableFuture<>();
+		CompletableFuture<UserInfo> existing = pendingLookups.putIfAbsent(token, future);
+		if (existing != null)
+			return await(existing);
+		try {
+			UserInfo ui = getRemote(token);
+			future.complete(ui);
+			return ui;
+		} catch (TAuthorizationException | TInvocationException | RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			pendingLookups.remove(token, future);
+		}
+	}
+
+	private static UserInfo await(CompletableFuture<UserInfo> future) throws TAuthorizationException,
+			TInvocationException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof TAuthorizationException)
+				throw (TAuthorizationException) cause;
+			if (cause instanceof TInvocationException)
+				throw (TInvocationException) cause;
+			throw new TInvocationException();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TInvocationException();
 		}
-		e.touch(now);
-		return e.user;
+	}
+
+	private static TAuthorizationException invalidToken() {
+		return new TAuthorizationException(AuthorizationError.INVALID_TOKEN,
+				"Your token is not known to the master server");
 	}
 
 	/**
@@ -150,8 +193,8 @@ public class SessionManager {
 			ui = ThriftManager.getMasterClient().getUserFromToken(token);
 		} catch (TInvalidTokenException ite) {
 			LOGGER.warn("Master says: Invalid token: " + token);
-			throw new TAuthorizationException(AuthorizationError.INVALID_TOKEN,
-					"Your token is not known to the master server");
+			rejectedTokens.add(token, System.currentTimeMillis());
+			throw invalidToken();
 		} catch (Exception e) {
 			LOGGER.warn("Could not reach master server to query for user token (" + token + ") of a client!",
 					e);
@@ -177,7 +220,7 @@ public class SessionManager {
 			authError = User.canLogin(ui);
 			handleAuthorizationError(ui, authError);
 		}
-		tokenManager.put(token, new Entry(ui));
+		tokenManager.put(token, ui, System.currentTimeMillis());
 		return ui;
 	}
 	
@@ -212,4 +255,40 @@ public class SessionManager {
 		}
 	}
 
+	/**
+	 * Recently rejected tokens, mapped to when they were rejected. As all
+	 * entries live equally long, insertion order is expiry order, so expired
+	 * entries are dropped from the head on every insert. If the map is still
+	 * full, the oldest entry makes room.
+	 */
+	private static class RejectedTokens {
+		private final LinkedHashMap<String, Long> map = new LinkedHashMap<>();
+
+		public synchronized boolean contains(String token, long now) {
+			Long rejected = map.get(token);
+			if (rejected == null)
+				return false;
+			if (rejected + REJECTED_TOKEN_TIMEOUT >= now)
+				return true;
+			map.remove(token);
+			return false;
+		}
+
+		public synchronized void add(String token, long now) {
+			for (Iterator<Long> it = map.values().iterator(); it.hasNext();) {
+				if (it.next() + REJECTED_TOKEN_TIMEOUT >= now)
+					break;
+				it.remove();
+			}
+			// Re-insert so it moves to the tail
+			map.remove(token);
+			if (map.size() >= MAX_REJECTED_TOKENS) {
+				Iterator<Long> it = map.values().iterator();
+				it.next();
+				it.remove();
+			}
+			map.put(token, now);
+		}
+	}
+
 }
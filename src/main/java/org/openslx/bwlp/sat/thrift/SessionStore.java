@@ -0,0 +1,31 @@
+package org.openslx.bwlp.sat.thrift;
+
+import org.openslx.bwlp.thrift.iface.UserInfo;
+
+/**
+ * Storage backend for {@link SessionManager}, mapping session tokens to
+ * users.
+ */
+public interface SessionStore {
+
+	/**
+	 * Get the user for the given token, and extend the session's lifetime.
+	 *
+	 * @return the user, or <code>null</code> if the token is unknown or the
+	 *         session expired
+	 */
+	UserInfo get(String token, long now);
+
+	/**
+	 * Add or replace the session for the given token.
+	 */
+	void put(String token, UserInfo user, long now);
+
+	void remove(String token);
+
+	/**
+	 * Drop all expired sessions.
+	 */
+	void expire(long now);
+
+}
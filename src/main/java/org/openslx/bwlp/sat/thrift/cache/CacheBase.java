@@ -1,42 +1,156 @@
 package org.openslx.bwlp.sat.thrift.cache;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.thrift.TException;
 
 /**
- * Class that caches an instance of a given class for 10 minutes.
- * If the cache expired and a fresh instance cannot be acquired,
- * the old instance will be returned.
- * 
+ * Class that caches an instance of a given class for about 10 minutes.
+ * Once expired, the old instance keeps being returned while a fresh one is
+ * fetched in the background, so callers never wait for the master server,
+ * except for the very first fetch. If fetching fails, the next attempt is
+ * delayed exponentially, starting at 30 seconds.
+ *
  * @param <T> The class to cache
  */
 public abstract class CacheBase<T> {
 
 	private static final Logger LOGGER = LogManager.getLogger(CacheBase.class);
 
-	private static final int TIMEOUT = 10 * 60 * 1000;
+	private static final long TIMEOUT = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * Spread refreshes of the caches by +/- 10%
+	 */
+	private static final long JITTER = TIMEOUT / 10;
+
+	private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+
+	/**
+	 * All instances, for {@link #getStatus()}
+	 */
+	private static final List<CacheBase<?>> caches = new CopyOnWriteArrayList<>();
+
+	/**
+	 * Runs the refreshes; a slow master server shouldn't block the
+	 * {@link org.openslx.util.QuickTimer} thread.
+	 */
+	private static final ExecutorService refresher = new ThreadPoolExecutor(0, 1, 1, TimeUnit.MINUTES,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CacheBase-Refresh");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private volatile T cachedInstance = null;
 
-	private T cachedInstance = null;
+	/**
+	 * When the current instance was fetched
+	 */
+	private volatile long lastRefresh = 0;
 
-	private long cacheTimeout = 0;
+	private volatile long nextRefresh = 0;
+
+	private volatile int failures = 0;
+
+	private final AtomicBoolean refreshing = new AtomicBoolean();
+
+	protected CacheBase() {
+		caches.add(this);
+	}
 
 	protected abstract T getCallback() throws TException;
 
-	protected synchronized T getInternal() {
-		final long now = System.currentTimeMillis();
-		if (cachedInstance == null || now > cacheTimeout) {
-			try {
-				T freshInstance = getCallback();
-				if (freshInstance != null) {
-					cachedInstance = freshInstance;
-					cacheTimeout = now + TIMEOUT;
+	protected T getInternal() {
+		T instance = cachedInstance;
+		if (instance == null) {
+			// Nothing to serve yet, have to wait
+			synchronized (this) {
+				instance = cachedInstance;
+				if (instance == null && System.currentTimeMillis() >= nextRefresh) {
+					refresh();
+					instance = cachedInstance;
 				}
-			} catch (TException e) {
-				LOGGER.warn("Could not retrieve fresh instance of " + getClass().getSimpleName(), e);
 			}
+			return instance;
+		}
+		if (System.currentTimeMillis() >= nextRefresh && refreshing.compareAndSet(false, true)) {
+			refresher.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						refresh();
+					} finally {
+						refreshing.set(false);
+					}
+				}
+			});
+		}
+		return instance;
+	}
+
+	private void refresh() {
+		T freshInstance = null;
+		try {
+			freshInstance = getCallback();
+		} catch (TException e) {
+			LOGGER.warn("Could not retrieve fresh instance of " + getClass().getSimpleName(), e);
+		}
+		final long now = System.currentTimeMillis();
+		if (freshInstance != null) {
+			cachedInstance = freshInstance;
+			lastRefresh = now;
+			failures = 0;
+			nextRefresh = now + TIMEOUT + ThreadLocalRandom.current().nextLong(-JITTER, JITTER + 1);
+		} else {
+			int f = Math.min(failures, 5);
+			failures = f + 1;
+			nextRefresh = now + Math.min(MIN_BACKOFF << f, TIMEOUT);
+		}
+	}
+
+	/**
+	 * @return milliseconds since the cached instance was fetched, or -1 if
+	 *         there is none yet
+	 */
+	public long getRefreshAge() {
+		if (cachedInstance == null)
+			return -1;
+		return System.currentTimeMillis() - lastRefresh;
+	}
+
+	public static List<Status> getStatus() {
+		List<Status> list = new ArrayList<>(caches.size());
+		for (CacheBase<?> cache : caches) {
+			list.add(new Status(cache.getClass().getSimpleName(), cache.getRefreshAge(), cache.failures));
+		}
+		return list;
+	}
+
+	public static class Status {
+		public final String name;
+		public final long refreshAgeMs;
+		public final int failures;
+
+		private Status(String name, long refreshAgeMs, int failures) {
+			this.name = name;
+			this.refreshAgeMs = refreshAgeMs;
+			this.failures = failures;
 		}
-		return cachedInstance;
 	}
 
 }
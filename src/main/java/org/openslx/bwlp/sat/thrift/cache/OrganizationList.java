@@ -1,7 +1,9 @@
 package org.openslx.bwlp.sat.thrift.cache;
 
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -23,6 +25,26 @@ public class OrganizationList extends CacheBase<List<Organization>> {
 
 	private static final OrganizationList instance = new OrganizationList();
 
+	/**
+	 * Index for {@link #find(String)}, rebuilt whenever the list changes.
+	 */
+	private static volatile Index index = null;
+
+	private static class Index {
+		private final List<Organization> list;
+		private final Map<String, Organization> byId;
+
+		private Index(List<Organization> list) {
+			this.list = list;
+			this.byId = new HashMap<>(list.size() * 2);
+			for (Organization org : list) {
+				if (org != null && org.organizationId != null && !byId.containsKey(org.organizationId)) {
+					byId.put(org.organizationId, org);
+				}
+			}
+		}
+	}
+
 	public static List<Organization> get() {
 		return instance.getInternal();
 	}
@@ -59,11 +81,12 @@ public class OrganizationList extends CacheBase<List<Organization>> {
 		List<Organization> list = get();
 		if (list == null)
 			return null;
-		for (Organization org : list) {
-			if (org != null && organizationId.equals(org.organizationId))
-				return org;
+		Index idx = index;
+		if (idx == null || idx.list != list) {
+			idx = new Index(list);
+			index = idx;
 		}
-		return null;
+		return idx.byId.get(organizationId);
 	}
 
 }
@@ -33,6 +33,19 @@ public class Configuration {
 	private static int masterPort = 9091;
 	private static boolean webServerBindLocalhost = true;
 	private static String dbLocationTable;
+	private static int dbPoolMaxSize = 32;
+	private static int dbPoolMinIdle = 4;
+	private static long dbPoolWaitTimeoutMs = 10000;
+	private static long dbPoolIdleTimeoutMs = 10 * 60 * 1000;
+	private static int dbStatementCacheSize = 64;
+	private static int dbBatchSize = 500;
+	private static long dbSlowQueryMs = 1000;
+	private static int dbAsyncThreads = 8;
+	private static String dbReplicaUri;
+	private static String dbReplicaUsername;
+	private static String dbReplicaPassword;
+	private static int dbReplicaMaxLagSeconds = 10;
+	private static String sessionStore = "db";
 	private static SSLContext ctx = null;
 
 	public static boolean load() throws IOException {
@@ -51,6 +64,55 @@ public class Configuration {
 		dbUsername = prop.getProperty("db.username");
 		dbPassword = prop.getProperty("db.password");
 		dbLocationTable = prop.getProperty("db.location-table");
+		try {
+			dbPoolMaxSize = Integer.parseInt(prop.getProperty("db.pool.max-size"));
+		} catch (Exception e) {
+		}
+		try {
+			dbPoolMinIdle = Integer.parseInt(prop.getProperty("db.pool.min-idle"));
+		} catch (Exception e) {
+		}
+		try {
+			dbPoolWaitTimeoutMs = Long.parseLong(prop.getProperty("db.pool.wait-timeout-ms"));
+		} catch (Exception e) {
+		}
+		try {
+			dbPoolIdleTimeoutMs = Long.parseLong(prop.getProperty("db.pool.idle-timeout-ms"));
+		} catch (Exception e) {
+		}
+		try {
+			dbStatementCacheSize = Integer.parseInt(prop.getProperty("db.statement-cache-size"));
+		} catch (Exception e) {
+		}
+		try {
+			dbBatchSize = Math.max(1, Integer.parseInt(prop.getProperty("db.batch-size")));
+		} catch (Exception e) {
+		}
+		try {
+			dbSlowQueryMs = Long.parseLong(prop.getProperty("db.slow-query-ms"));
+		} catch (Exception e) {
+		}
+		try {
+			dbAsyncThreads = Math.max(1, Integer.parseInt(prop.getProperty("db.async.threads")));
+		} catch (Exception e) {
+		}
+		if (!Util.isEmptyString(prop.getProperty("db.replica.uri"))) {
+			dbReplicaUri = prop.getProperty("db.replica.uri");
+			dbReplicaUsername = prop.getProperty("db.replica.username");
+			if (Util.isEmptyString(dbReplicaUsername)) {
+				dbReplicaUsername = dbUsername;
+				dbReplicaPassword = dbPassword;
+			} else {
+				dbReplicaPassword = prop.getProperty("db.replica.password");
+			}
+		}
+		try {
+			dbReplicaMaxLagSeconds = Integer.parseInt(prop.getProperty("db.replica.max-lag-seconds"));
+		} catch (Exception e) {
+		}
+		if (!Util.isEmptyString(prop.getProperty("session.store"))) {
+			sessionStore = prop.getProperty("session.store");
+		}
 		masterAddress = prop.getProperty("master.address");
 		if (!Util.isEmptyString(prop.getProperty("master.ssl"))) {
 			masterSsl = Boolean.parseBoolean(prop.getProperty("master.ssl"));
@@ -96,6 +158,100 @@ public class Configuration {
 		return dbLocationTable;
 	}
 
+	/**
+	 * Maximum number of database connections that can be in use at the same
+	 * time.
+	 */
+	public static int getDbPoolMaxSize() {
+		return dbPoolMaxSize;
+	}
+
+	/**
+	 * Number of connections to open on startup, so the first requests don't
+	 * have to wait for connection setup.
+	 */
+	public static int getDbPoolMinIdle() {
+		return dbPoolMinIdle;
+	}
+
+	/**
+	 * How long to wait for a connection if all of them are busy.
+	 */
+	public static long getDbPoolWaitTimeoutMs() {
+		return dbPoolWaitTimeoutMs;
+	}
+
+	/**
+	 * Idle connections exceeding the minimum idle count get closed after this
+	 * long.
+	 */
+	public static long getDbPoolIdleTimeoutMs() {
+		return dbPoolIdleTimeoutMs;
+	}
+
+	/**
+	 * Number of prepared statements to keep around per database connection.
+	 */
+	public static int getDbStatementCacheSize() {
+		return dbStatementCacheSize;
+	}
+
+	/**
+	 * Maximum number of rows to send to the database in one batch when doing
+	 * bulk inserts.
+	 */
+	public static int getDbBatchSize() {
+		return dbBatchSize;
+	}
+
+	/**
+	 * Queries taking longer than this are logged. 0 disables logging.
+	 */
+	public static long getDbSlowQueryMs() {
+		return dbSlowQueryMs;
+	}
+
+	/**
+	 * Number of threads running database work for the web and list
+	 * endpoints. Should be well below the pool size, so these can't starve
+	 * the Thrift handlers of connections.
+	 */
+	public static int getDbAsyncThreads() {
+		return dbAsyncThreads;
+	}
+
+	/**
+	 * JDBC URI of a read replica of the database, or <code>null</code> if
+	 * there is none.
+	 */
+	public static String getDbReplicaUri() {
+		return dbReplicaUri;
+	}
+
+	public static String getDbReplicaUsername() {
+		return dbReplicaUsername;
+	}
+
+	public static String getDbReplicaPassword() {
+		return dbReplicaPassword;
+	}
+
+	/**
+	 * Stop sending queries to the replica if it is lagging behind more than
+	 * this.
+	 */
+	public static int getDbReplicaMaxLagSeconds() {
+		return dbReplicaMaxLagSeconds;
+	}
+
+	/**
+	 * Where to keep user sessions: "db" (default) to persist them in the
+	 * database, "memory" to lose them on restart.
+	 */
+	public static String getSessionStore() {
+		return sessionStore;
+	}
+
 	public static File getVmStoreProdPath() {
 		return vmStoreProdPath;
 	}
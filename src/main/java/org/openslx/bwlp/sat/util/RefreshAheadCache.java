@@ -0,0 +1,173 @@
+package org.openslx.bwlp.sat.util;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.UnitOfWork;
+
+/**
+ * Concurrent cache for database lookups. Entries that are accessed after
+ * <code>refreshAfterMs</code> are reloaded in the background while the
+ * current value keeps being served, so frequently used entries never expire.
+ * Entries older than <code>expireAfterMs</code> are loaded synchronously again
+ * on the next access. <code>null</code> results are cached as well.
+ * Writers should call {@link #invalidate(Object)} after changing the data
+ * behind an entry.
+ */
+public class RefreshAheadCache<K, V> {
+
+	private static final Logger LOGGER = LogManager.getLogger(RefreshAheadCache.class);
+
+	/**
+	 * Loads a value from the database.
+	 */
+	public interface Loader<K, V> {
+		/**
+		 * @return the value, or <code>null</code> if it doesn't exist
+		 */
+		V load(K key) throws SQLException;
+	}
+
+	/**
+	 * Shared by all caches, refreshes are cheap single-row lookups.
+	 */
+	private static final ExecutorService refresher = new ThreadPoolExecutor(1, 2, 1, TimeUnit.MINUTES,
+			new LinkedBlockingQueue<Runnable>(1000), new ThreadFactory() {
+				private final AtomicInteger id = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "CacheRefresh-" + id.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private static class Entry<V> {
+		private final V value;
+		private final long loaded;
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+
+		private Entry(V value, long now) {
+			this.value = value;
+			this.loaded = now;
+		}
+	}
+
+	private final ConcurrentHashMap<K, Entry<V>> map = new ConcurrentHashMap<>();
+
+	private final Loader<K, V> loader;
+
+	private final long refreshAfterMs;
+
+	private final long expireAfterMs;
+
+	private final AtomicInteger putCount = new AtomicInteger();
+
+	/**
+	 * Bumped on every invalidation, so a load that raced with one doesn't
+	 * put the value it read before the change into the cache.
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	public RefreshAheadCache(long refreshAfterMs, long expireAfterMs, Loader<K, V> loader) {
+		this.refreshAfterMs = refreshAfterMs;
+		this.expireAfterMs = expireAfterMs;
+		this.loader = loader;
+	}
+
+	/**
+	 * Get the value for the given key, loading it if it's not cached.
+	 *
+	 * @throws SQLException if loading failed
+	 */
+	public V get(final K key) throws SQLException {
+		if (key == null)
+			return load(key);
+		final long now = System.currentTimeMillis();
+		final Entry<V> e = map.get(key);
+		if (e != null && now - e.loaded < expireAfterMs) {
+			if (now - e.loaded >= refreshAfterMs && e.refreshing.compareAndSet(false, true)) {
+				try {
+					refresher.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								// Don't overwrite the entry if it was invalidated meanwhile
+								map.replace(key, e, new Entry<>(load(key), System.currentTimeMillis()));
+							} catch (SQLException ex) {
+								LOGGER.debug("Refreshing cache entry " + key + " failed", ex);
+							} finally {
+								e.refreshing.set(false);
+							}
+						}
+					});
+				} catch (RejectedExecutionException ex) {
+					e.refreshing.set(false);
+				}
+			}
+			return e.value;
+		}
+		final long gen = generation.get();
+		V value = load(key);
+		put(key, e, new Entry<>(value, now), gen);
+		return value;
+	}
+
+	/**
+	 * Load outside of the current unit of work, so a sync load doesn't cache
+	 * what an old snapshot shows.
+	 */
+	private V load(K key) throws SQLException {
+		try (UnitOfWork.Suspension s = UnitOfWork.suspend()) {
+			return loader.load(key);
+		}
+	}
+
+	/**
+	 * Replace the given old entry (<code>null</code> if there was none) with
+	 * the new one, unless another thread got there first, or an invalidation
+	 * happened since generation <code>gen</code>.
+	 */
+	private void put(K key, Entry<V> old, Entry<V> entry, long gen) {
+		if (old == null ? map.putIfAbsent(key, entry) != null : !map.replace(key, old, entry))
+			return;
+		if (generation.get() != gen) {
+			// Might have been loaded before the change, better load again next time
+			map.remove(key, entry);
+			return;
+		}
+		final long now = entry.loaded;
+		if (putCount.incrementAndGet() % 1000 == 0) {
+			// Drop entries nobody asked for in a while
+			for (Iterator<Entry<V>> it = map.values().iterator(); it.hasNext();) {
+				if (now - it.next().loaded >= expireAfterMs) {
+					it.remove();
+				}
+			}
+		}
+	}
+
+	public void invalidate(K key) {
+		generation.incrementAndGet();
+		map.remove(key);
+	}
+
+	public void invalidateAll() {
+		generation.incrementAndGet();
+		map.clear();
+	}
+
+}
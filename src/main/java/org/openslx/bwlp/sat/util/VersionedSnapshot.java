@@ -0,0 +1,186 @@
+package org.openslx.bwlp.sat.util;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.UnitOfWork;
+
+/**
+ * Immutable in-memory copy of some database content, like the preset tables.
+ * The copy is reloaded on access once it is older than <code>maxAgeMs</code>,
+ * or after {@link #invalidate()}. Only the caller noticing reloads it, while
+ * everybody else keeps getting the old copy, which is also kept if reloading
+ * fails. Only the very first load makes callers wait.
+ * Small changes can be applied to the current copy using
+ * {@link #beginUpdate()} and {@link #update(long, Updater)} instead of
+ * reloading everything.
+ */
+public class VersionedSnapshot<T> {
+
+	private static final Logger LOGGER = LogManager.getLogger(VersionedSnapshot.class);
+
+	/**
+	 * Loads a fresh copy from the database.
+	 */
+	public interface Loader<T> {
+		T load() throws SQLException;
+	}
+
+	/**
+	 * Creates a modified copy of the current value. Must not modify the
+	 * current value, as it might still be in use.
+	 */
+	public interface Updater<T> {
+		T update(T current);
+	}
+
+	private static class Holder<T> {
+		private final T value;
+		private final long version;
+		private final long loaded;
+
+		private Holder(T value, long version, long loaded) {
+			this.value = value;
+			this.version = version;
+			this.loaded = loaded;
+		}
+	}
+
+	private final String name;
+
+	private final long maxAgeMs;
+
+	private final Loader<T> loader;
+
+	/**
+	 * Bumped to force a full reload
+	 */
+	private final AtomicLong version = new AtomicLong();
+
+	/**
+	 * Bumped on every partial update, so a full reload that ran concurrently
+	 * can tell it might have missed it
+	 */
+	private final AtomicLong changes = new AtomicLong();
+
+	private final AtomicBoolean reloading = new AtomicBoolean();
+
+	/**
+	 * Held during the first load only
+	 */
+	private final Object firstLoadLock = new Object();
+
+	private volatile Holder<T> current = null;
+
+	/**
+	 * @param name what is cached, for log messages
+	 * @param maxAgeMs reload after this many milliseconds, in case the data
+	 *            was changed without invalidating
+	 */
+	public VersionedSnapshot(String name, long maxAgeMs, Loader<T> loader) {
+		this.name = name;
+		this.maxAgeMs = maxAgeMs;
+		this.loader = loader;
+	}
+
+	/**
+	 * Get the current copy, reloading it if it's outdated.
+	 *
+	 * @throws SQLException only if nothing was loaded yet
+	 */
+	public T get() throws SQLException {
+		Holder<T> h = current;
+		if (h == null) {
+			synchronized (firstLoadLock) {
+				if (current == null) {
+					reload();
+				}
+				return current.value;
+			}
+		}
+		if ((h.version != version.get() || System.currentTimeMillis() - h.loaded > maxAgeMs)
+				&& reloading.compareAndSet(false, true)) {
+			try {
+				reload();
+				h = current;
+			} catch (SQLException e) {
+				LOGGER.warn("Could not reload " + name + ", keeping old copy", e);
+			} finally {
+				reloading.set(false);
+			}
+		}
+		return h.value;
+	}
+
+	/**
+	 * @return the current copy without reloading, or <code>null</code> if
+	 *         nothing was loaded yet
+	 */
+	public T getIfLoaded() {
+		Holder<T> h = current;
+		return h == null ? null : h.value;
+	}
+
+	/**
+	 * The data changed, reload on next access.
+	 */
+	public void invalidate() {
+		version.incrementAndGet();
+	}
+
+	/**
+	 * @return counter that changes on every {@link #invalidate()}
+	 */
+	public long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Announce a partial update, before loading the changed data. Pass the
+	 * returned token to {@link #update(long, Updater)} afterwards.
+	 */
+	public long beginUpdate() {
+		return changes.incrementAndGet();
+	}
+
+	/**
+	 * Apply a partial update to the current copy. The changed data should be
+	 * loaded before calling this. If another update or reload ran
+	 * concurrently, the result might be outdated, so it will be reloaded
+	 * fully on next access. Does nothing if nothing was loaded yet.
+	 */
+	public synchronized void update(long token, Updater<T> updater) {
+		Holder<T> h = current;
+		if (h == null)
+			return;
+		long loaded = h.loaded;
+		if (changes.get() != token) {
+			loaded = 0;
+		}
+		current = new Holder<>(updater.update(h.value), h.version, loaded);
+	}
+
+	private void reload() throws SQLException {
+		final long startVersion = version.get();
+		final long startChanges = changes.get();
+		T value;
+		// Not from the connection of the current unit of work, its snapshot might be old
+		try (UnitOfWork.Suspension s = UnitOfWork.suspend()) {
+			value = loader.load();
+		}
+		install(value, startVersion, startChanges);
+	}
+
+	private synchronized void install(T value, long startVersion, long startChanges) {
+		long loaded = System.currentTimeMillis();
+		if (changes.get() != startChanges) {
+			// Something was updated meanwhile, we might have the old state, so reload again soon
+			loaded = 0;
+		}
+		current = new Holder<>(value, startVersion, loaded);
+	}
+
+}
@@ -0,0 +1,154 @@
+package org.openslx.bwlp.sat.web;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.output.ByteArrayOutputStream;
+import org.openslx.bwlp.sat.database.mappers.DbLecture;
+import org.openslx.bwlp.sat.database.mappers.DbLecture.LaunchData;
+import org.openslx.bwlp.sat.database.mappers.DbLecture.RunScript;
+import org.openslx.bwlp.sat.database.mappers.DbLectureUsage;
+import org.openslx.bwlp.sat.database.mappers.DbReferenceData;
+import org.openslx.bwlp.thrift.iface.NetShare;
+import org.openslx.bwlp.thrift.iface.NetShareAuth;
+import org.openslx.bwlp.thrift.iface.TNotFoundException;
+import org.openslx.util.TarArchiveUtil.TarArchiveWriter;
+import org.openslx.util.Util;
+
+/**
+ * Caches the tar archive with everything a client needs to start a lecture
+ * (vmx, run scripts, net shares), as a whole room usually starts the same
+ * lecture within a few minutes. Cache hits are served from memory; only the
+ * lecture's start and end time are checked again. Edits to lectures, image
+ * versions, image configs and presets invalidate all archives, and archives
+ * are rebuilt after a few minutes in case the database was changed directly.
+ */
+public class LaunchBundleCache {
+
+	private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(10);
+
+	private static final int MAX_ENTRIES = 500;
+
+	/**
+	 * Bumped whenever something changed that the lecture's update time
+	 * doesn't tell us about
+	 */
+	private static final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * lectureId -> archive
+	 */
+	private static final ConcurrentHashMap<String, Bundle> cache = new ConcurrentHashMap<>();
+
+	private static class Bundle {
+		private final String key;
+		private final byte[] data;
+		private final long startTime;
+		private final long endTime;
+		private final long created;
+
+		private Bundle(String key, LaunchData ld, byte[] data) {
+			this.key = key;
+			this.data = data;
+			this.startTime = ld.startTime;
+			this.endTime = ld.endTime;
+			this.created = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Get the tar archive needed to start the given lecture, and count the
+	 * launch.
+	 *
+	 * @return gzipped tar archive, or <code>null</code> if the lecture's
+	 *         image has no usable virtualizer config
+	 * @throws TNotFoundException lecture doesn't exist or cannot be started
+	 *             right now
+	 */
+	public static byte[] get(String lectureId) throws SQLException, TNotFoundException, IOException {
+		final String key = DbReferenceData.getVersion() + "/" + generation.get();
+		Bundle bundle = cache.get(lectureId);
+		if (bundle != null && bundle.key.equals(key) && System.currentTimeMillis() - bundle.created <= MAX_AGE) {
+			// Same check as in getClientLaunchData, everything else would have invalidated the archive
+			long now = Util.unixTime();
+			if (bundle.startTime > now || bundle.endTime < now)
+				throw new TNotFoundException();
+		} else {
+			LaunchData ld = DbLecture.getClientLaunchData(lectureId);
+			if (ld == null)
+				return null;
+			bundle = new Bundle(key, ld, build(ld));
+			if (cache.size() >= MAX_ENTRIES) {
+				// Not worth an LRU, usually there aren't even close to this many running lectures
+				cache.clear();
+			}
+			cache.put(lectureId, bundle);
+		}
+		DbLectureUsage.countLaunch(lectureId);
+		return bundle.data;
+	}
+
+	/**
+	 * A lecture, image or its config changed, rebuild all archives on next
+	 * request.
+	 */
+	public static void invalidate() {
+		generation.incrementAndGet();
+	}
+
+	private static byte[] build(LaunchData ld) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveWriter tarArchiveWriter = new TarArchiveWriter(baos);
+		try {
+			// Meta is required, everything else is optional
+			tarArchiveWriter.writeFile("vmx", ld.configuration);
+			tarArchiveWriter.writeFile("runscript", ld.legacyRunScript);
+			tarArchiveWriter.writeFile("netshares", serializeNetShares(ld.netShares));
+			if (ld.runScript != null) {
+				int cnt = 0;
+				for (RunScript rs : ld.runScript) {
+					tarArchiveWriter.writeFile(String.format("adminrun/%04d-%d-%d.%s", cnt++, rs.visibility,
+							rs.passCreds ? 1 : 0, rs.extension), rs.content);
+				}
+			}
+		} finally {
+			Util.safeClose(tarArchiveWriter);
+		}
+		return baos.toByteArray();
+	}
+
+	private static String serializeNetShares(List<NetShare> list) {
+		// openslx.exe expects shares in the following format
+		// <path> <letter> <shortcut> <username> <password>
+		// letter is either a drive letter for Windows VMs,
+		// or a mount point for Linux VMs.
+		StringBuilder sb = new StringBuilder();
+		if (!list.isEmpty()) {
+			for (NetShare share : list) {
+				sb.append(share.path);
+				sb.append('\t');
+				sb.append(share.mountpoint);
+				sb.append('\t');
+				sb.append(share.displayname);
+				if (share.auth == NetShareAuth.LOGIN_USER) {
+					// TODO how to mark that it should use the logged in user's credentials
+				}
+				if (share.auth == NetShareAuth.OTHER_USER && share.isSetUsername()) {
+					sb.append('\t');
+					sb.append(share.username);
+					if (share.isSetPassword()) {
+						sb.append('\t');
+						sb.append(share.password); // TODO fixme
+					}
+				}
+				sb.append("\n");
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.openslx.bwlp.sat.web;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.mappers.DbAsync;
+import org.openslx.bwlp.sat.database.mappers.DbImage;
+import org.openslx.bwlp.sat.database.mappers.DbUser;
+import org.openslx.bwlp.sat.permissions.User;
+import org.openslx.bwlp.sat.thrift.SessionManager;
+import org.openslx.bwlp.thrift.iface.TAuthorizationException;
+import org.openslx.bwlp.thrift.iface.TInvocationException;
+import org.openslx.bwlp.thrift.iface.UserInfo;
+import org.openslx.util.Json;
+
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.common.QueryParams;
+import com.linecorp.armeria.server.AbstractHttpService;
+import com.linecorp.armeria.server.ServiceRequestContext;
+
+/**
+ * Cursor based variants of the paginated list RPCs, for clients talking to
+ * the armeria server. Every response contains the items of one page and a
+ * <code>next</code> token, which is passed as <code>cursor</code> parameter
+ * to get the following page. <code>next</code> is missing on the last page.
+ *
+ * <pre>
+ * GET /list/users?token=&lt;session token&gt;[&amp;cursor=&lt;next&gt;]
+ * GET /list/images?token=&lt;session token&gt;[&amp;cursor=&lt;next&gt;]
+ * </pre>
+ */
+public class PagedListService extends AbstractHttpService {
+
+	private static final Logger LOGGER = LogManager.getLogger(PagedListService.class);
+
+	@Override
+	protected HttpResponse doGet(ServiceRequestContext ctx, HttpRequest req) {
+		final String path = ctx.mappedPath();
+		final QueryParams params = QueryParams.fromQueryString(ctx.query() == null ? "" : ctx.query());
+		final String token = params.get("token");
+		final String cursor = params.get("cursor");
+		// The session lookup might have to ask the master server, so only the queries go to the database executor
+		CompletableFuture<HttpResponse> future = CompletableFuture.supplyAsync(() -> authenticate(token),
+				ctx.blockingTaskExecutor()).thenCompose(user -> {
+					if (user == null)
+						return CompletableFuture.completedFuture(
+								HttpResponse.of(HttpStatus.FORBIDDEN, MediaType.PLAIN_TEXT_UTF_8, "Access denied"));
+					return DbAsync.supply(() -> handle(path, user, cursor));
+				});
+		return HttpResponse.from(future.exceptionally(t -> {
+			LOGGER.debug("Could not serve list " + path, t);
+			return HttpResponse.of(HttpStatus.INTERNAL_SERVER_ERROR);
+		}));
+	}
+
+	/**
+	 * @return the session's user, or <code>null</code> if the token is invalid
+	 */
+	private static UserInfo authenticate(String token) {
+		try {
+			return SessionManager.getOrFail(token);
+		} catch (TAuthorizationException e) {
+			return null;
+		} catch (TInvocationException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private HttpResponse handle(String path, UserInfo user, String cursor) {
+		try {
+			if (path.equals("/users")) {
+				return json(DbUser.getPage(cursor));
+			}
+			if (path.equals("/images")) {
+				User.canListImagesOrFail(user);
+				return json(DbImage.getVisiblePage(user, cursor));
+			}
+			return HttpResponse.of(HttpStatus.NOT_FOUND);
+		} catch (TAuthorizationException e) {
+			return HttpResponse.of(HttpStatus.FORBIDDEN, MediaType.PLAIN_TEXT_UTF_8, "Access denied");
+		} catch (IllegalArgumentException e) {
+			return HttpResponse.of(HttpStatus.BAD_REQUEST, MediaType.PLAIN_TEXT_UTF_8, "Invalid cursor");
+		} catch (SQLException e) {
+			LOGGER.debug("Could not serve list " + path, e);
+			return HttpResponse.of(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+	}
+
+	private static HttpResponse json(Object o) {
+		return HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, Json.serialize(o));
+	}
+
+}
@@ -1,6 +1,5 @@
 package org.openslx.bwlp.sat.web;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
@@ -12,11 +11,13 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import javax.security.auth.login.LoginException;
 
@@ -25,6 +26,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.openslx.bwlp.sat.database.mappers.DbConfiguration;
 import org.openslx.bwlp.sat.database.mappers.DbImage;
+import org.openslx.bwlp.sat.database.mappers.DbLectureIndex;
+import org.openslx.bwlp.sat.database.mappers.DbReferenceData;
 import org.openslx.bwlp.sat.mail.MailTemplate;
 import org.openslx.bwlp.sat.mail.MailTemplatePlain.Template;
 import org.openslx.bwlp.sat.mail.SmtpMailer;
@@ -38,14 +41,15 @@ import org.openslx.bwlp.sat.util.FileSystem;
 import org.openslx.util.Json;
 import org.openslx.util.Util;
 
-import fi.iki.elonen.NanoHTTPD;
-import fi.iki.elonen.NanoHTTPD.Response;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
 
 public class WebRpc {
 
 	private static final Logger LOGGER = LogManager.getLogger(WebRpc.class);
 
-	public static Response handle(String uri, Map<String, String> params) {
+	public static HttpResponse handle(String uri, Map<String, String> params) {
 		if (uri.equals("mailtest")) {
 			return mailTest(params);
 		}
@@ -64,42 +68,66 @@ public class WebRpc {
 		if (uri.equals("scan-orphaned-files")) {
 			return scanForOrphanedFiles(params);
 		}
+		if (uri.equals("reference-data-changed")) {
+			return referenceDataChanged();
+		}
 		return WebServer.notFound();
 	}
 
-	private static Response resetMailTemplates() {
+	/**
+	 * Presets or locations were edited, drop our cached copy.
+	 */
+	private static HttpResponse referenceDataChanged() {
+		DbReferenceData.invalidate();
+		// Lectures might use one of the LDAP filter presets
+		DbLectureIndex.invalidate();
+		return HttpResponse.of(HttpStatus.OK, MediaType.PLAIN_TEXT_UTF_8, "OK");
+	}
+
+	private static HttpResponse resetMailTemplates() {
 		DbConfiguration.updateMailTemplates(true);
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "text/plain; charset=utf-8", "OK");
+		return HttpResponse.of(HttpStatus.OK, MediaType.PLAIN_TEXT_UTF_8, "OK");
 	}
 
 	/**
 	 * Scan the vmstore for orphaned files and images, return a list.
 	 * If POST param 'action' is 'delete', all those files will be deleted.
 	 */
-	private static Response scanForOrphanedFiles(Map<String, String> params) {
+	private static HttpResponse scanForOrphanedFiles(Map<String, String> params) {
 		if (!FileSystem.isStorageMounted())
 			return WebServer.internalServerError("VMstore not mounted");
 		final Map<String, DeleteResult> orphanedFiles = new HashMap<>();
 		final String baseDir = Configuration.getVmStoreBasePath().toString();
 		final int baseLen = baseDir.length() + (baseDir.endsWith("/") ? 0 : 1);
 		final boolean del = params.containsKey("action") && params.get("action").equals("delete");
-		final Set<String> known; // These we want to keep
+		// Consider only regular files, call checkFile for each one
+		final Map<String, List<String>> candidates = new HashMap<>();
+		try (Stream<Path> files = Files.find(Configuration.getVmStoreProdPath().toPath(), 8,
+				(filePath, fileAttr) -> fileAttr.isRegularFile())) {
+			files.forEach((fileName) -> checkFile(fileName, candidates, baseLen));
+		} catch (IOException e) {
+			return WebServer.internalServerError(e.toString());
+		}
+		// Drop all files known to the db, these we want to keep
+		AtomicInteger matches = new AtomicInteger();
+		final int known;
 		try {
-			known = DbImage.getAllFilenames();
+			known = DbImage.forEachFilename((fileName) -> {
+				List<String> found = candidates.remove(fileName);
+				if (found != null) {
+					matches.addAndGet(found.size());
+				}
+			});
 		} catch (SQLException e1) {
 			return WebServer.internalServerError("Cannot query list of known images from database");
 		}
-		if (known.isEmpty()) {
+		if (known == 0) {
 			return WebServer.internalServerError("SAFTY CHECK: Known image list empty, aborting");
 		}
-		AtomicInteger matches = new AtomicInteger();
-		try {
-			// Consider only regular files, call checkFile for each one
-			Files.find(Configuration.getVmStoreProdPath().toPath(), 8,
-					(filePath, fileAttr) -> fileAttr.isRegularFile())
-					.forEach((fileName) -> checkFile(fileName, orphanedFiles, baseLen, known, matches));
-		} catch (IOException e) {
-			return WebServer.internalServerError(e.toString());
+		for (List<String> orphans : candidates.values()) {
+			for (String fileName : orphans) {
+				orphanedFiles.put(fileName, DeleteResult.EXISTS);
+			}
 		}
 		if (del) {
 			for (Entry<String, DeleteResult> it : orphanedFiles.entrySet()) {
@@ -119,7 +147,7 @@ public class WebRpc {
 				}
 			}
 		}
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "application/json; charset=utf-8",
+		return HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
 				Json.serialize(orphanedFiles));
 	}
 
@@ -131,18 +159,16 @@ public class WebRpc {
 	}
 
 	/**
-	 * Function called for each file found on the VMstore to determine if it's
-	 * orphaned.
+	 * Function called for each file found on the VMstore to collect it for the
+	 * orphan check.
 	 *
 	 * @param filePath File to check
-	 * @param result Map to add the check result to
+	 * @param candidates Map to add the file to, keyed by the image file name
+	 *            it belongs to
 	 * @param baseLen length of the base path we need to strip from the absolute
 	 *            path
-	 * @param known list of known images from the db
-	 * @param matches counter for files that match a DB entry
 	 */
-	private static void checkFile(Path filePath, Map<String, DeleteResult> result, int baseLen,
-			Set<String> known, AtomicInteger matches) {
+	private static void checkFile(Path filePath, Map<String, List<String>> candidates, int baseLen) {
 		if (filePath.endsWith("dozmod.lock"))
 			return;
 		final String relativeFileName;
@@ -161,14 +187,15 @@ public class WebRpc {
 		} else {
 			compareFileName = relativeFileName;
 		}
-		if (known.contains(compareFileName)) {
-			matches.incrementAndGet();
-		} else {
-			result.put(relativeFileName, DeleteResult.EXISTS);
+		List<String> list = candidates.get(compareFileName);
+		if (list == null) {
+			list = new ArrayList<>(4);
+			candidates.put(compareFileName, list);
 		}
+		list.add(relativeFileName);
 	}
 
-	private static Response checkImage(Map<String, String> params) {
+	private static HttpResponse checkImage(Map<String, String> params) {
 		String versionId = params.get("versionid");
 		if (versionId == null)
 			return WebServer.badRequest("Missing versionid param");
@@ -176,10 +203,10 @@ public class WebRpc {
 		boolean checkHashes = Boolean.valueOf(params.get("hash"));
 		boolean updateState = Boolean.valueOf(params.get("update"));
 		SubmitResult res = ImageValidCheck.check(versionId, checkHashes, updateState);
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "text/plain; charset=utf-8", res.name());
+		return HttpResponse.of(HttpStatus.OK, MediaType.PLAIN_TEXT_UTF_8, res.name());
 	}
 
-	private static Response queryImageCheck(Map<String, String> params) {
+	private static HttpResponse queryImageCheck(Map<String, String> params) {
 		String versionId = params.get("versionid");
 		Map<String, CheckResult> result;
 		if (versionId == null) {
@@ -190,25 +217,25 @@ public class WebRpc {
 			result = new HashMap<>();
 			result.put(versionId, res);
 		}
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "application/json; charset=utf-8",
+		return HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8,
 				Json.serialize(result));
 	}
 
 	/**
 	 * Delete all image versions marked as WANT_DELETE.
 	 */
-	private static Response deleteImages() {
+	private static HttpResponse deleteImages() {
 		StringBuilder res = DeleteOldImages.hardDeleteImages();
 		if (res == null)
 			return WebServer.internalServerError();
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "text/plain; charset=utf-8",
+		return HttpResponse.of(HttpStatus.OK, MediaType.PLAIN_TEXT_UTF_8,
 				res.toString());
 	}
 
 	/**
 	 * Send test mail to given SMTP config.
 	 */
-	private static Response mailTest(Map<String, String> params) {
+	private static HttpResponse mailTest(Map<String, String> params) {
 		SmtpMailer smtpc;
 		String recipient = params.get("recipient");
 		String host = params.get("host");
@@ -249,6 +276,8 @@ public class WebRpc {
 
 		boolean ret = false;
 		if (smtpc != null) {
+			// Admin might have just edited the templates
+			DbConfiguration.invalidateMailTemplates();
 			MailTemplate template = DbConfiguration.getMailTemplate(Template.TEST_MAIL);
 			Map<String, String> templateArgs = new HashMap<>();
 			templateArgs.put("host", host);
@@ -265,7 +294,7 @@ public class WebRpc {
 					+ (ret ? "" : "nicht ") + "erfolgreich").getBytes(StandardCharsets.UTF_8));
 		} catch (IOException e) {
 		}
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "text/plain; charset=utf-8",
-				new ByteArrayInputStream(baos.toByteArray()));
+		return HttpResponse.of(HttpStatus.OK, MediaType.PLAIN_TEXT_UTF_8,
+				baos.toByteArray());
 	}
 }
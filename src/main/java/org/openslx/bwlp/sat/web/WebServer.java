@@ -1,57 +1,65 @@
 package org.openslx.bwlp.sat.web;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.openslx.bwlp.sat.database.Database;
+import org.openslx.bwlp.sat.database.QueryStats;
+import org.openslx.bwlp.sat.database.mappers.DbAsync;
+import org.openslx.bwlp.sat.database.mappers.DbAsync.DbCall;
 import org.openslx.bwlp.sat.database.mappers.DbImage;
 import org.openslx.bwlp.sat.database.mappers.DbLecture;
-import org.openslx.bwlp.sat.database.mappers.DbLecture.LaunchData;
-import org.openslx.bwlp.sat.database.mappers.DbLecture.RunScript;
 import org.openslx.bwlp.sat.fileserv.FileServer;
-import org.openslx.bwlp.sat.util.Configuration;
+import org.openslx.bwlp.sat.thrift.cache.CacheBase;
 import org.openslx.bwlp.thrift.iface.NetRule;
-import org.openslx.bwlp.thrift.iface.NetShare;
-import org.openslx.bwlp.thrift.iface.NetShareAuth;
 import org.openslx.bwlp.thrift.iface.TNotFoundException;
-import org.openslx.util.GrowingThreadPoolExecutor;
 import org.openslx.util.Json;
-import org.openslx.util.Util;
-import org.openslx.util.TarArchiveUtil.TarArchiveWriter;
 import org.simpleframework.xml.Serializer;
 import org.simpleframework.xml.core.Persister;
 
-import fi.iki.elonen.NanoHTTPD;
+import com.linecorp.armeria.common.AggregatedHttpRequest;
+import com.linecorp.armeria.common.HttpMethod;
+import com.linecorp.armeria.common.HttpRequest;
+import com.linecorp.armeria.common.HttpResponse;
+import com.linecorp.armeria.common.HttpStatus;
+import com.linecorp.armeria.common.MediaType;
+import com.linecorp.armeria.common.QueryParams;
+import com.linecorp.armeria.server.HttpService;
+import com.linecorp.armeria.server.ServiceRequestContext;
 
-public class WebServer extends NanoHTTPD {
+/**
+ * Plain HTTP interface for the clients (lecture list, launch data), the web
+ * interface (<code>/do/</code> RPCs) and monitoring (<code>/status/</code>).
+ * Mount it under all of {@link #PREFIXES}. Requests run on the armeria event
+ * loops; anything touching the database is handed to {@link DbAsync}, so a
+ * lab booting at once queues up there instead of being rejected.
+ */
+public class WebServer implements HttpService {
 
 	private static final Logger LOGGER = LogManager.getLogger(WebServer.class);
 
-	private static final ThreadPoolExecutor tpe = new GrowingThreadPoolExecutor(1, 8, 1, TimeUnit.MINUTES,
-			new LinkedBlockingQueue<Runnable>(16));
+	/**
+	 * Paths this service handles
+	 */
+	public static final String[] PREFIXES = { "/vmchooser/", "/bwlp/", "/image/", "/status/", "/do/" };
 
-	private static final Serializer serializer = new Persister();
+	private static final MediaType GZIP = MediaType.parse("application/gzip");
 
-	public WebServer(int port) {
-		super(Configuration.getWebServerBindAddressLocal(), port);
-		super.maxRequestSize = 65535;
-	}
+	private static final Serializer serializer = new Persister();
 
 	@Override
-	public Response serve(IHTTPSession session) {
-		String uri = session.getUri();
+	public HttpResponse serve(ServiceRequestContext ctx, HttpRequest req) {
+		String uri = ctx.path();
 
 		if (uri == null || uri.length() == 0) {
 			return internalServerError();
@@ -62,22 +70,31 @@ public class WebServer extends NanoHTTPD {
 			uri = uri.replaceAll("//+", "/");
 		}
 
-		try {
-			return handle(session, uri);
-		} catch (Throwable t) {
-			LOGGER.debug("Could not handle request", t);
-			return internalServerError();
+		final QueryParams query = QueryParams.fromQueryString(ctx.query() == null ? "" : ctx.query());
+		if (uri.startsWith("/do/")) {
+			if (req.method() != HttpMethod.POST)
+				return notFound();
+			// Some of these take a while, like sending a test mail, so don't block the event loop
+			final String action = uri.substring(4);
+			CompletableFuture<HttpResponse> future = req.aggregate().thenApplyAsync(
+					body -> WebRpc.handle(action, getParams(query, body)), ctx.blockingTaskExecutor());
+			return HttpResponse.from(future.exceptionally(WebServer::failed));
+		}
+		if (uri.startsWith("/status/")) {
+			return serveStatus(uri);
 		}
+		final String path = uri;
+		return async(() -> handle(path, query));
 	}
 
-	private Response handle(IHTTPSession session, String uri) {
+	private HttpResponse handle(String uri, QueryParams query) {
 		// Our special stuff
 		String[] parts = uri.replaceFirst("^/+", "").split("/+");
 		// /vmchooser/*
 		if (parts.length > 1 && parts[0].equals("vmchooser")) {
 			if (parts[1].equals("list")) {
 				try {
-					return serveVmChooserList(session.getParms());
+					return serveVmChooserList(query);
 				} catch (Exception e) {
 					LOGGER.debug("problem while retrieving the vmChooserList", e);
 					return internalServerError();
@@ -105,79 +122,54 @@ public class WebServer extends NanoHTTPD {
 				return serveContainerImageMetaData(parts[2]);
 		}
 
+		return notFound();
+	}
+
+	/**
+	 * These only return what we have in memory, so answer right away. They
+	 * should also keep working when the database is stuck.
+	 */
+	private HttpResponse serveStatus(String uri) {
 		if (uri.startsWith("/status/fileserver")) {
-			return serveStatus();
+			return json(FileServer.instance().getStatus());
 		}
-		if (session.getMethod() == Method.POST && uri.startsWith("/do/")) {
-			try {
-				session.parseBody(null);
-			} catch (IOException | ResponseException e) {
-				LOGGER.debug("could not parse request body", e);
-				return internalServerError();
-			}
-			return WebRpc.handle(uri.substring(4), session.getParms());
+		if (uri.startsWith("/status/database")) {
+			return json(Database.getStatus());
+		}
+		if (uri.startsWith("/status/queries")) {
+			return json(QueryStats.getStatus());
+		}
+		if (uri.startsWith("/status/caches")) {
+			return json(CacheBase.getStatus());
 		}
-
 		return notFound();
 	}
 
-	private Response serveStatus() {
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "application/json; charset=utf-8",
-				Json.serialize(FileServer.instance().getStatus()));
-	}
-
 	/**
 	 * Return meta data (eg. *.vmx) required to start the given lecture.
-	 * 
+	 *
 	 * @param lectureId
 	 * @return
 	 */
-	private Response serveMetaData(final String lectureId) {
-		PipedInputStream sink = new PipedInputStream(10000);
+	private HttpResponse serveMetaData(final String lectureId) {
+		byte[] bundle;
 		try {
-			final TarArchiveWriter tarArchiveWriter = new TarArchiveWriter(new PipedOutputStream(sink));
-			final LaunchData ld;
-			try {
-				ld = DbLecture.getClientLaunchData(lectureId);
-			} catch (TNotFoundException e) {
-				// TODO better virt error handling
-				return notFound();
-			} catch (SQLException e) {
-				return internalServerError();
-			}
-			// Meta is required, everything else is optional
-			tpe.execute(new Runnable() {
-				@Override
-				public void run() {
-					try {
-						tarArchiveWriter.writeFile("vmx", ld.configuration);
-						tarArchiveWriter.writeFile("runscript", ld.legacyRunScript);
-						tarArchiveWriter.writeFile("netshares", serializeNetShares(ld.netShares));
-						if (ld.runScript != null) {
-							int cnt = 0;
-							for (RunScript rs : ld.runScript) {
-								tarArchiveWriter.writeFile(String.format("adminrun/%04d-%d-%d.%s", cnt++, rs.visibility,
-									rs.passCreds ? 1 : 0, rs.extension), rs.content);
-							}
-						}
-					} catch (IOException e) {
-						LOGGER.warn("Error writing to tar stream", e);
-					} finally {
-						Util.safeClose(tarArchiveWriter);
-					}
-				}
-			});
-		} catch (IOException e1) {
-			LOGGER.warn("Could not create tar output stream", e1);
+			bundle = LaunchBundleCache.get(lectureId);
+		} catch (TNotFoundException e) {
+			// TODO better virt error handling
+			return notFound();
+		} catch (SQLException e) {
 			return internalServerError();
-		} catch (RejectedExecutionException e2) {
-			LOGGER.warn("Server overloaded; rejecting VM Metadata request", e2);
+		} catch (IOException e) {
+			LOGGER.warn("Error writing tar archive", e);
 			return internalServerError();
 		}
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "application/gzip", sink);
+		if (bundle == null)
+			return internalServerError();
+		return HttpResponse.of(HttpStatus.OK, GZIP, bundle);
 	}
 
-	private Response serveLectureNetRules(String lectureId) {
+	private HttpResponse serveLectureNetRules(String lectureId) {
 		List<NetRule> list = new ArrayList<>();
 		boolean defaultAllowed;
 		try {
@@ -205,104 +197,114 @@ public class WebServer extends NanoHTTPD {
 			sb.append("IN * 0 REJECT\n");
 			sb.append("OUT * 0 REJECT\n");
 		}
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "text/plain; charset=utf-8", sb.toString());
-	}
-
-	private String serializeNetShares(List<NetShare> list) {
-		// openslx.exe expects shares in the following format
-		// <path> <letter> <shortcut> <username> <password>
-		// letter is either a drive letter for Windows VMs,
-		// or a mount point for Linux VMs.
-		StringBuilder sb = new StringBuilder();
-		if (!list.isEmpty()) {
-			for (NetShare share : list) {
-				sb.append(share.path);
-				sb.append('\t');
-				sb.append(share.mountpoint);
-				sb.append('\t');
-				sb.append(share.displayname);
-				if (share.auth == NetShareAuth.LOGIN_USER) {
-					// TODO how to mark that it should use the logged in user's credentials
-				}
-				if (share.auth == NetShareAuth.OTHER_USER && share.isSetUsername()) {
-					sb.append('\t');
-					sb.append(share.username);
-					if (share.isSetPassword()) {
-						sb.append('\t');
-						sb.append(share.password); // TODO fixme
-					}
-				}
-				sb.append("\n");
-			}
-		}
-		return sb.toString();
+		return HttpResponse.of(HttpStatus.OK, MediaType.PLAIN_TEXT_UTF_8, sb.toString());
 	}
 
 	/**
 	 * Return full list of lectures matching given location(s).
-	 * 
+	 *
 	 * @return
 	 * @throws Exception
 	 */
-	private Response serveVmChooserList(Map<String, String> params) throws Exception {
+	private HttpResponse serveVmChooserList(QueryParams params) throws Exception {
 		String locations = params.get("locations");
-		boolean exams = params.containsKey("exams");
+		boolean exams = params.contains("exams");
 
 		VmChooserListXml listXml = DbLecture.getUsableListXml(exams, locations);
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		serializer.write(listXml, baos);
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.OK, "text/xml; charset=utf-8",
-				new ByteArrayInputStream(baos.toByteArray()));
+		return HttpResponse.of(HttpStatus.OK, MediaType.XML_UTF_8, baos.toByteArray());
+	}
+
+	/**
+	 * Run the given call on the database executor.
+	 */
+	private static HttpResponse async(DbCall<HttpResponse> call) {
+		return HttpResponse.from(DbAsync.supply(call).exceptionally(WebServer::failed));
+	}
+
+	private static HttpResponse failed(Throwable t) {
+		if (t instanceof CompletionException && t.getCause() != null) {
+			t = t.getCause();
+		}
+		if (t instanceof RejectedExecutionException) {
+			LOGGER.warn("Server overloaded; rejecting request");
+			return HttpResponse.of(HttpStatus.SERVICE_UNAVAILABLE, MediaType.PLAIN_TEXT_UTF_8,
+					"Server overloaded");
+		}
+		LOGGER.debug("Could not handle request", t);
+		return internalServerError();
+	}
+
+	/**
+	 * Merge query string and url encoded POST body, like a form submit.
+	 */
+	private static Map<String, String> getParams(QueryParams query, AggregatedHttpRequest body) {
+		Map<String, String> params = new HashMap<>();
+		for (String name : query.names()) {
+			params.put(name, query.get(name));
+		}
+		MediaType contentType = body.contentType();
+		if (contentType != null && contentType.belongsTo(MediaType.FORM_DATA)) {
+			QueryParams form = QueryParams.fromQueryString(body.contentUtf8());
+			for (String name : form.names()) {
+				params.put(name, form.get(name));
+			}
+		}
+		return params;
+	}
+
+	private static HttpResponse json(Object o) {
+		return HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, Json.serialize(o));
 	}
 
 	/**
 	 * Helper for returning "Internal Server Error" Status
-	 * 
+	 *
 	 * @param body Message
 	 */
-	public static Response internalServerError(String body) {
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.INTERNAL_ERROR, "text/plain", body);
+	public static HttpResponse internalServerError(String body) {
+		return HttpResponse.of(HttpStatus.INTERNAL_SERVER_ERROR, MediaType.PLAIN_TEXT_UTF_8, body);
 	}
 
-	public static Response internalServerError() {
+	public static HttpResponse internalServerError() {
 		return internalServerError("Internal Server Error");
 	}
 
 	/**
 	 * Helper for returning "404 Not Found" Status
 	 */
-	public static Response notFound() {
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.NOT_FOUND, "text/plain", "Nicht gefunden!");
+	public static HttpResponse notFound() {
+		return HttpResponse.of(HttpStatus.NOT_FOUND, MediaType.PLAIN_TEXT_UTF_8, "Nicht gefunden!");
 	}
 
 	/**
 	 * Helper for returning "Bad Request" Status
 	 */
-	public static Response badRequest(String message) {
+	public static HttpResponse badRequest(String message) {
 		if (message == null) {
 			message = "Schlechte Anfrage!";
 		}
-		return new NanoHTTPD.Response(NanoHTTPD.Response.Status.BAD_REQUEST, "text/plain", message);
+		return HttpResponse.of(HttpStatus.BAD_REQUEST, MediaType.PLAIN_TEXT_UTF_8, message);
 	}
 
 	/**
 	 * create a json response with information about existing container images in
 	 * bwlehrpool
 	 */
-	private Response serverContainerImages() {
+	private HttpResponse serverContainerImages() {
 		try {
-			return new Response(Response.Status.OK, "application/json; charset=utf-8",
-					Json.serialize(DbImage.getContainerImageCluster()));
+			return json(DbImage.getContainerImageCluster());
 		} catch (SQLException e) {
 			LOGGER.error("error -- could not server container images", e);
 			return internalServerError();
 		}
 	}
 
-	private Response serveContainerImageMetaData(String imageBaseId) {
+	private HttpResponse serveContainerImageMetaData(String imageBaseId) {
 		try {
-			return new Response(Response.Status.OK, "application/json; charset=utf-8",
-					DbImage.getContainerImageMetadata(imageBaseId));
+			String metadata = DbImage.getContainerImageMetadata(imageBaseId);
+			return HttpResponse.of(HttpStatus.OK, MediaType.JSON_UTF_8, metadata == null ? "" : metadata);
 		} catch (SQLException e) {
 			LOGGER.error("error -- could not server container image", e);
 			return internalServerError();
@@ -0,0 +1,46 @@
+package bwlehrpool;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.openslx.bwlp.sat.database.mappers.DbLectureIndex;
+import org.openslx.bwlp.sat.database.mappers.DbLectureIndex.Active;
+import org.openslx.bwlp.sat.database.mappers.DbLectureIndex.Lecture;
+
+import junit.framework.TestCase;
+
+public class DbLectureIndexTest extends TestCase {
+
+	public void testActiveWindow() {
+		List<Lecture> lectures = Arrays.asList(new Lecture("a", false, 100, 200));
+		assertEquals(0, DbLectureIndex.computeActive(lectures, 100).lectures.size());
+		assertEquals(1, DbLectureIndex.computeActive(lectures, 101).lectures.size());
+		assertEquals(1, DbLectureIndex.computeActive(lectures, 199).lectures.size());
+		assertEquals(0, DbLectureIndex.computeActive(lectures, 200).lectures.size());
+	}
+
+	public void testValidUntil() {
+		List<Lecture> lectures = Arrays.asList(new Lecture("a", false, 100, 200));
+		// Not started yet, or starting right now: becomes active one second later
+		assertEquals(101, DbLectureIndex.computeActive(lectures, 50).validUntil);
+		assertEquals(101, DbLectureIndex.computeActive(lectures, 100).validUntil);
+		// Running: valid until it ends
+		assertEquals(200, DbLectureIndex.computeActive(lectures, 150).validUntil);
+		// Over: nothing will change
+		assertEquals(Long.MAX_VALUE, DbLectureIndex.computeActive(lectures, 200).validUntil);
+		// Earliest change wins
+		lectures = Arrays.asList(new Lecture("a", false, 100, 200), new Lecture("b", false, 120, 300));
+		assertEquals(121, DbLectureIndex.computeActive(lectures, 110).validUntil);
+	}
+
+	public void testExamsSeparate() {
+		Lecture lecture = new Lecture("a", false, 100, 200);
+		Lecture exam = new Lecture("b", true, 100, 200);
+		Active active = DbLectureIndex.computeActive(Arrays.asList(lecture, exam), 150);
+		assertEquals(1, active.lectures.size());
+		assertSame(lecture, active.lectures.get(0));
+		assertEquals(1, active.exams.size());
+		assertSame(exam, active.exams.get(0));
+	}
+
+}
@@ -0,0 +1,36 @@
+package bwlehrpool;
+
+import org.openslx.bwlp.sat.database.Paginator;
+import org.openslx.bwlp.sat.database.Paginator.PageIndex;
+
+import junit.framework.TestCase;
+
+public class PaginatorTest extends TestCase {
+
+	public void testTokenRoundTrip() {
+		assertEquals("", Paginator.decodeToken(null));
+		assertEquals("", Paginator.decodeToken(""));
+		assertEquals("user@uni-freiburg.de", Paginator.decodeToken(Paginator.encodeToken("user@uni-freiburg.de")));
+		assertEquals("äöü:/?&", Paginator.decodeToken(Paginator.encodeToken("äöü:/?&")));
+	}
+
+	public void testInvalidToken() {
+		try {
+			Paginator.decodeToken("bm9wZQ");
+			fail("Token without prefix accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testPageIndex() {
+		PageIndex index = new PageIndex();
+		assertEquals("", index.getStartKey(0));
+		assertNull(index.getStartKey(3));
+		index.setStartKey(2, "b");
+		assertEquals("b", index.getStartKey(2));
+		assertEquals(2, (int) index.getClosest(5).getKey());
+		assertEquals(0, (int) index.getClosest(1).getKey());
+	}
+
+}